@@ -0,0 +1,151 @@
+package common.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * 异步数据库查询，通过 DBQuery.async() 获取
+ * 每个查询在独立的线程中执行并使用该线程自己的连接，执行完毕即归还连接池，
+ * 多个互不依赖的查询可以并行执行，页面只需等待最慢的一个。
+ * 运行环境支持虚拟线程时使用虚拟线程，并发数由 database.ini 中的 async_threads 限制。
+ * 注意：异步查询不参与调用方线程中正在进行的事务。
+ */
+public class AsyncQuery {
+
+    private final static Logger log = LoggerFactory.getLogger(AsyncQuery.class);
+
+    private static volatile ExecutorService executor;
+    private static Semaphore permits;   //使用虚拟线程时限制同时执行的查询数
+
+    private final String databaseName;
+
+    AsyncQuery(String databaseName) {
+        this.databaseName = databaseName;
+    }
+
+    /**
+     * 异步执行任意数据库操作
+     *
+     * @param action
+     * @return
+     */
+    public <T> CompletableFuture<T> supply(Function<DBQuery, T> action) {
+        //调用方已经写过主库时，异步读也使用主库
+        boolean pinned = DBManager.isPinned(databaseName);
+        ExecutorService es = executor();
+        Semaphore limit = permits;
+        return CompletableFuture.supplyAsync(() -> {
+            if (limit != null) {
+                limit.acquireUninterruptibly();
+            }
+            try {
+                if (pinned) {
+                    DBManager.pin(databaseName);
+                }
+                return action.apply(DBQuery.get(databaseName));
+            } finally {
+                DBManager.closeConnection();
+                if (limit != null) {
+                    limit.release();
+                }
+            }
+        }, es);
+    }
+
+    public <T> CompletableFuture<T> read(Class<T> beanClass, String sql, Object... params) {
+        return supply(q -> q.read(beanClass, sql, params));
+    }
+
+    public <T> CompletableFuture<T> read_cache(Class<T> beanClass, boolean cacheNullObject, String cache, String key, String sql, Object... params) {
+        return supply(q -> q.read_cache(beanClass, cacheNullObject, cache, key, sql, params));
+    }
+
+    public CompletableFuture<List<Object[]>> list(String sql, Object... params) {
+        return supply(q -> q.list(sql, params));
+    }
+
+    public <T> CompletableFuture<List<T>> query(Class<T> beanClass, String sql, Object... params) {
+        return supply(q -> q.query(beanClass, sql, params));
+    }
+
+    public <T> CompletableFuture<List<T>> query_cache(Class<T> beanClass, boolean cacheNullObject, String cache_region, String key, String sql, Object... params) {
+        return supply(q -> q.query_cache(beanClass, cacheNullObject, cache_region, key, sql, params));
+    }
+
+    public <T> CompletableFuture<List<T>> query_slice(Class<T> beanClass, String sql, int page, int count, Object... params) {
+        return supply(q -> q.query_slice(beanClass, sql, page, count, params));
+    }
+
+    public <T> CompletableFuture<List<T>> query_slice_cache(Class<T> beanClass,
+                                                            String cache, String cache_key, int cache_obj_count,
+                                                            String sql, int page, int count, Object... params) {
+        return supply(q -> q.query_slice_cache(beanClass, cache, cache_key, cache_obj_count, sql, page, count, params));
+    }
+
+    public CompletableFuture<Integer> stat(String sql, Object... params) {
+        return supply(q -> q.stat(sql, params));
+    }
+
+    public CompletableFuture<Integer> stat_cache(String cache_region, String key, String sql, Object... params) {
+        return supply(q -> q.stat_cache(cache_region, key, sql, params));
+    }
+
+    private static ExecutorService executor() {
+        ExecutorService es = executor;
+        if (es == null) {
+            synchronized (AsyncQuery.class) {
+                if (executor == null) {
+                    executor = createExecutor(DBManager.asyncThreads());
+                }
+                es = executor;
+            }
+        }
+        return es;
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            permits = new Semaphore(threads);
+            log.info("Async queries run on virtual threads, at most " + threads + " at a time");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (NoSuchMethodException e) {
+        } catch (ReflectiveOperationException e) {
+            log.warn("Failed to create virtual thread executor", e);
+        }
+        permits = null;
+        AtomicInteger seq = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "DBQuery-Async-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * 关闭异步查询线程
+     */
+    static void shutdown() {
+        synchronized (AsyncQuery.class) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+}
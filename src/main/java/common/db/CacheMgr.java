@@ -1,23 +1,58 @@
 package common.db;
 
 import net.oschina.j2cache.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * 缓存管理器
+ * 在 J2Cache 前面增加两层本地缓存：
+ * 1. 请求内缓存：beginRequest 到 endRequest 之间同一线程重复读取同一个键直接返回；
+ * 2. 近端缓存：j2cache.properties 中配置了 near.<region> = 容量,TTL秒 的区域（near.default 作用于其它区域），
+ * 在本 JVM 内按容量和 TTL 保存对象引用。
+ * 本地的 set/evict/clear 会同步更新这两层；j2cache.broadcast = redis 时改用 NearCacheClusterPolicy 广播，
+ * 其它节点上的修改随 J2Cache 的清除命令同时清除近端缓存，其它广播方式下只能依赖近端缓存的 TTL 过期。
+ * 带 loader 的读取在未命中时，同一 JVM 内同一个键只有一个线程执行 loader，其它线程等待并共享结果。
  */
 public class CacheMgr {
 
+    private final static Logger log = LoggerFactory.getLogger(CacheMgr.class);
+
     private final static String CONFIG_FILE = "/j2cache.properties";
+    private final static String NEAR_PREFIX = "near.";
+    private final static String NEAR_DEFAULT = "default";
     private final static J2CacheBuilder builder;
+    private final static Properties nearConfig = new Properties();
 
     static {
+        try (InputStream stream = CacheMgr.class.getResourceAsStream(CONFIG_FILE)) {
+            if (stream != null) {
+                nearConfig.load(stream);
+            }
+        } catch (IOException e) {
+            throw new CacheException("Failed to load j2cache configuration " + CONFIG_FILE, e);
+        }
         try {
             J2CacheConfig config = J2CacheConfig.initFromConfig(CONFIG_FILE);
+            if (nearConfig.stringPropertyNames().stream().anyMatch(name -> name.startsWith(NEAR_PREFIX))) {
+                if ("redis".equalsIgnoreCase(config.getBroadcast())) {
+                    //沿用 redis 的广播配置，收到其它节点的清除命令时同时清除近端缓存
+                    NearCacheClusterPolicy.init(config.getBroadcastProperties());
+                    config.setBroadcast(NearCacheClusterPolicy.class.getName());
+                } else {
+                    log.warn("Near cache is not invalidated by broadcast " + config.getBroadcast() + ", entries expire by TTL only");
+                }
+            }
             builder = J2CacheBuilder.init(config);
         } catch (IOException e) {
             throw new CacheException("Failed to load j2cache configuration " + CONFIG_FILE, e);
@@ -25,41 +60,227 @@ public class CacheMgr {
     }
 
     private final static CacheChannel cache = builder.getChannel();
+    private final static ConcurrentHashMap<String, Optional<NearCache>> nears = new ConcurrentHashMap<>();
+    private final static ThreadLocal<Map<String, Object>> memo = new ThreadLocal<>();
+    private final static ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();  //正在加载的键
 
     public static Object get(String region, String key)  {
-        return cache.get(region, key).getValue();
+        Object value = local(region, key);
+        if (value == null) {
+            value = cache.get(region, key).getValue();
+            keep(region, key, value);
+        }
+        return value;
     }
 
     public static Object get(String region, String key, Function<String, Object> loader, boolean...cacheNullObject) {
-        return cache.get(region, key, loader, cacheNullObject).getValue();
+        Object value = local(region, key);
+        if (value == null) {
+            value = cache.get(region, key).getValue();
+            if (value == null) {
+                //J2Cache 加载前会再检查一次缓存，已缓存的 null 不会重复执行 loader
+                value = loadOnce(region, key, () -> cache.get(region, key, loader, cacheNullObject).getValue());
+            }
+            keep(region, key, value);
+        }
+        return value;
+    }
+
+    /**
+     * 读取缓存，过期前返回旧值的同时由一个线程重新加载（stale-while-revalidate）
+     * 缓存中保存的是带加载时间的包装对象，加载超过 refreshSeconds 秒后，第一个读到的线程执行 loader 并写回缓存，
+     * 其间其它线程继续返回旧值而不等待；重新加载失败时保留旧值，下次读取再试。
+     * 区域本身的过期时间应大于 refreshSeconds，否则旧值在刷新前就已失效，只能退化为普通的加载。
+     *
+     * @param region
+     * @param key
+     * @param refreshSeconds
+     * @param loader
+     * @return
+     */
+    public static Object getOrRevalidate(String region, String key, int refreshSeconds, Function<String, Object> loader) {
+        Object cached = local(region, key);
+        if (cached == null) {
+            cached = cache.get(region, key).getValue();
+            keep(region, key, cached);
+        }
+        if (!(cached instanceof Stamped)) {
+            Stamped loaded = (Stamped) loadOnce(region, key, () -> {
+                Object obj = cache.get(region, key).getValue();
+                return (obj instanceof Stamped) ? obj : reload(region, key, refreshSeconds, loader);
+            });
+            keep(region, key, loaded);
+            return loaded.value;
+        }
+        Stamped stamped = (Stamped) cached;
+        if (System.currentTimeMillis() < stamped.refreshAt) {
+            return stamped.value;
+        }
+        String flightKey = regionKey(region, key);
+        Flight flight = new Flight();
+        if (flights.putIfAbsent(flightKey, flight) != null) {
+            return stamped.value;   //其它线程正在刷新
+        }
+        try {
+            Stamped loaded = reload(region, key, refreshSeconds, loader);
+            flight.result.complete(loaded);
+            return loaded.value;
+        } catch (RuntimeException e) {
+            log.warn(String.format("Failed to refresh cache (%s,%s), serving stale value", region, key), e);
+            flight.result.complete(stamped);
+            return stamped.value;
+        } finally {
+            flights.remove(flightKey, flight);
+        }
+    }
+
+    /**
+     * 执行 loader 并写入缓存，不检查现有的值；同一个键同时只有一个线程执行 loader，其它线程共享其结果
+     *
+     * @param region
+     * @param key
+     * @param loader
+     * @return
+     */
+    public static Object load(String region, String key, Function<String, Object> loader) {
+        return loadOnce(region, key, () -> {
+            Object value = loader.apply(key);
+            set(region, key, value);
+            return value;
+        });
+    }
+
+    private static Stamped reload(String region, String key, int refreshSeconds, Function<String, Object> loader) {
+        Stamped loaded = new Stamped(loader.apply(key), System.currentTimeMillis() + refreshSeconds * 1000L);
+        set(region, key, loaded);
+        return loaded;
+    }
+
+    /**
+     * 同一个键同时只有一个线程执行 supplier，其它线程等待并共享其结果或异常
+     */
+    private static Object loadOnce(String region, String key, Supplier<Object> supplier) {
+        String flightKey = regionKey(region, key);
+        Flight flight = new Flight();
+        Flight running = flights.putIfAbsent(flightKey, flight);
+        if (running != null) {
+            if (running.owner == Thread.currentThread()) {
+                return supplier.get();  //loader 中重入读取同一个键
+            }
+            try {
+                return running.result.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new CacheException("Failed to load cache (" + region + "," + key + ")", cause);
+            }
+        }
+        try {
+            Object value = supplier.get();
+            flight.result.complete(value);
+            return value;
+        } catch (Throwable t) {
+            flight.result.completeExceptionally(t);
+            throw t;
+        } finally {
+            flights.remove(flightKey, flight);
+        }
     }
 
     public static Map<String, CacheObject> get(String region, Collection<String> keys)  {
-        return cache.get(region, keys);
+        return get(region, keys, null);
     }
 
     public static Map<String, CacheObject> get(String region, Collection<String> keys, Function<String, Object> loader, boolean...cacheNullObject)  {
-        return cache.get(region, keys, loader, cacheNullObject);
+        Map<String, CacheObject> results = new HashMap<>(keys.size() * 4 / 3 + 1);
+        List<String> missed = new ArrayList<>();
+        for (String key : keys) {
+            Object value = local(region, key);
+            if (value != null) {
+                results.put(key, new CacheObject(region, key, CacheObject.LEVEL_1, value));
+            } else {
+                missed.add(key);
+            }
+        }
+        if (missed.size() > 0) {
+            Map<String, CacheObject> objs = (loader != null) ? cache.get(region, missed, loader, cacheNullObject) : cache.get(region, missed);
+            if (objs != null) {
+                objs.forEach((key, obj) -> {
+                    if (obj != null) {
+                        keep(region, key, obj.getValue());
+                    }
+                });
+                results.putAll(objs);
+            }
+        }
+        return results;
     }
 
     public static boolean exists(String region, String key)  {
-        return cache.exists(region, key);
+        return local(region, key) != null || cache.exists(region, key);
     }
 
     public static void set(String region, String key, Object value)  {
         cache.set(region, key, value);
+        keep(region, key, value);
     }
 
     public static void set(String region, Map<String, Object> elements)  {
         cache.set(region, elements);
+        elements.forEach((key, value) -> keep(region, key, value));
     }
 
     public static void evict(String region, String... keys)  {
         cache.evict(region, keys);
+        NearCache near = near(region);
+        Map<String, Object> objs = memo.get();
+        for (String key : keys) {
+            if (near != null) {
+                near.remove(key);
+            }
+            if (objs != null) {
+                objs.remove(regionKey(region, key));
+            }
+        }
     }
 
     public static void clear(String region)  {
         cache.clear(region);
+        NearCache near = near(region);
+        if (near != null) {
+            near.clear();
+        }
+        Map<String, Object> objs = memo.get();
+        if (objs != null) {
+            objs.clear();
+        }
+    }
+
+    /**
+     * 清除近端缓存中的对象，由 NearCacheClusterPolicy 在收到其它节点的清除命令时调用
+     *
+     * @param region
+     * @param keys
+     */
+    static void evictNear(String region, String... keys) {
+        Optional<NearCache> near = nears.get(region);
+        if (near != null && near.isPresent()) {
+            for (String key : keys) {
+                near.get().remove(key);
+            }
+        }
+    }
+
+    static void clearNear(String region) {
+        Optional<NearCache> near = nears.get(region);
+        if (near != null && near.isPresent()) {
+            near.get().clear();
+        }
     }
 
     public static Collection<String> keys(String region)  {
@@ -70,4 +291,152 @@ public class CacheMgr {
         cache.close();
     }
 
+    /**
+     * 开始请求内缓存，当前线程在 endRequest 之前重复读取同一个键时不再访问 J2Cache
+     */
+    public static void beginRequest() {
+        memo.set(new HashMap<>());
+    }
+
+    /**
+     * 结束请求内缓存
+     */
+    public static void endRequest() {
+        memo.remove();
+    }
+
+    /**
+     * 各区域近端缓存的状态
+     *
+     * @return
+     */
+    public static List<NearStatus> nearStatus() {
+        List<NearStatus> status = new ArrayList<>();
+        nears.values().forEach(near -> near.ifPresent(n -> status.add(new NearStatus(n))));
+        return status;
+    }
+
+    private static Object local(String region, String key) {
+        Map<String, Object> objs = memo.get();
+        Object value = (objs != null) ? objs.get(regionKey(region, key)) : null;
+        if (value == null) {
+            NearCache near = near(region);
+            if (near != null) {
+                value = near.get(key);
+                if (value != null && objs != null) {
+                    objs.put(regionKey(region, key), value);
+                }
+            }
+        }
+        return value;
+    }
+
+    private static void keep(String region, String key, Object value) {
+        Map<String, Object> objs = memo.get();
+        if (objs != null) {
+            if (value != null) {
+                objs.put(regionKey(region, key), value);
+            } else {
+                objs.remove(regionKey(region, key));
+            }
+        }
+        NearCache near = near(region);
+        if (near != null) {
+            near.put(key, value);
+        }
+    }
+
+    private static String regionKey(String region, String key) {
+        return region + '\u0000' + key;
+    }
+
+    private static NearCache near(String region) {
+        Optional<NearCache> near = nears.get(region);
+        if (near == null) {
+            near = nears.computeIfAbsent(region, CacheMgr::createNear);
+        }
+        return near.orElse(null);
+    }
+
+    /**
+     * 按 near.<region> 或 near.default 配置创建近端缓存，格式：容量,TTL秒
+     */
+    private static Optional<NearCache> createNear(String region) {
+        String setting = nearConfig.getProperty(NEAR_PREFIX + region, nearConfig.getProperty(NEAR_PREFIX + NEAR_DEFAULT));
+        if (setting == null || setting.trim().length() == 0) {
+            return Optional.empty();
+        }
+        String[] parts = setting.split(",");
+        try {
+            int size = Integer.parseInt(parts[0].trim());
+            int ttl = (parts.length > 1) ? Integer.parseInt(parts[1].trim()) : 60;
+            return (size > 0 && ttl > 0) ? Optional.of(new NearCache(region, size, ttl)) : Optional.empty();
+        } catch (NumberFormatException e) {
+            throw new CacheException("Illegal near cache setting of region " + region + ": " + setting, e);
+        }
+    }
+
+    private final static class Flight {
+        final Thread owner = Thread.currentThread();
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+    }
+
+    /**
+     * getOrRevalidate 保存到缓存中的对象，记录应当刷新的时间
+     */
+    final static class Stamped implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Object value;
+        final long refreshAt;
+
+        Stamped(Object value, long refreshAt) {
+            this.value = value;
+            this.refreshAt = refreshAt;
+        }
+    }
+
+    /**
+     * 近端缓存状态
+     */
+    public static class NearStatus {
+        private final String region;
+        private final int size;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        NearStatus(NearCache near) {
+            this.region = near.region();
+            this.size = near.size();
+            this.hits = near.hits.sum();
+            this.misses = near.misses.sum();
+            this.evictions = near.evictions.sum();
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public double getHitRate() {
+            long total = hits + misses;
+            return (total > 0) ? (double) hits / total : 0;
+        }
+    }
 }
@@ -10,16 +10,15 @@ import org.slf4j.LoggerFactory;
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 数据库管理
@@ -30,9 +29,20 @@ public class DBManager {
     private final static Logger log = LoggerFactory.getLogger(DBManager.class);
 
     private final static ConcurrentHashMap<String, ThreadLocal<Connection>> connections = new ConcurrentHashMap<>();
+    private final static ConcurrentHashMap<String, ThreadLocal<Connection>> readConnections = new ConcurrentHashMap<>();
+    private final static ThreadLocal<Set<String>> pinned = new ThreadLocal<>();   //本次请求中已写过主库的数据源
     private final static String SECTION_GLOBAL = "global";
+    private final static String REPLICA_SEPARATOR = "@";
+    private final static int DEFAULT_REPLICA_CHECK_INTERVAL = 5;  //从库健康检查间隔（秒）
     private static Map<String, DataSource> dataSources = new ConcurrentHashMap<>();
-    private static boolean show_sql = false;
+    private static Map<String, ReplicaGroup> replicaGroups = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService replicaChecker;
+    private final static long DEFAULT_SLOW_SQL = 1000;   //慢查询阈值（毫秒）
+    private static boolean operation_scoped = false;   //连接是否按操作归还
+    private final static int DEFAULT_ASYNC_THREADS = 16;
+    private static int async_threads = DEFAULT_ASYNC_THREADS;    //异步查询的最大并发数
+    private final static int DEFAULT_VIEW_COUNT_FLUSH = 30;
+    private static int view_count_flush = DEFAULT_VIEW_COUNT_FLUSH;  //浏览数写库间隔（秒）
     private static String defaultdb;
 
     static {
@@ -46,37 +56,102 @@ public class DBManager {
         try (InputStream stream = DBManager.class.getResourceAsStream("/database.ini")) {
             Ini ini = new Ini(stream);
             Class dsName = Class.forName(ini.get(SECTION_GLOBAL, "datasource"));
-            show_sql = Boolean.valueOf(ini.get(SECTION_GLOBAL, "show_sql"));
+            String slow_sql = ini.get(SECTION_GLOBAL, "slow_sql");
+            SQLStats.configure(Boolean.valueOf(ini.get(SECTION_GLOBAL, "show_sql")),
+                    (slow_sql != null) ? Long.parseLong(slow_sql.trim()) : DEFAULT_SLOW_SQL);
             defaultdb = ini.get(SECTION_GLOBAL, "defaultdb");
+            //request: 连接绑定到请求线程，请求结束时释放；operation: 每次数据库操作（或事务）结束后立即归还连接池
+            operation_scoped = "operation".equalsIgnoreCase(ini.get(SECTION_GLOBAL, "connection_scope"));
+            String asyncThreads = ini.get(SECTION_GLOBAL, "async_threads");
+            async_threads = (asyncThreads != null) ? Integer.parseInt(asyncThreads.trim()) : DEFAULT_ASYNC_THREADS;
+            String viewCountFlush = ini.get(SECTION_GLOBAL, "view_count_flush");
+            view_count_flush = (viewCountFlush != null) ? Integer.parseInt(viewCountFlush.trim()) : DEFAULT_VIEW_COUNT_FLUSH;
 
             ini.forEach((key, section) -> {
                 if (!SECTION_GLOBAL.equalsIgnoreCase(key)) {
                     try {
+                        //形如 [mysql@replica1] 的配置段为 mysql 的从库，weight 为轮询权重
+                        Map<String, String> props = new HashMap<>(section);
+                        String weight = props.remove("weight");
                         DataSource dsSource = (DataSource) dsName.newInstance();
-                        BeanUtils.populate(dsSource, section);
+                        BeanUtils.populate(dsSource, props);
                         dataSources.put(key, dsSource);
+                        connections.put(key, new ThreadLocal<>());
+
+                        int idx = key.indexOf(REPLICA_SEPARATOR);
+                        if (idx > 0) {
+                            String primary = key.substring(0, idx);
+                            replicaGroups.computeIfAbsent(primary, ReplicaGroup::new)
+                                    .add(new Replica(key, dsSource, (weight != null) ? Integer.parseInt(weight.trim()) : 1));
+                            readConnections.putIfAbsent(primary, new ThreadLocal<>());
+                        }
 
                         try (Connection conn = dsSource.getConnection()) {
                             DatabaseMetaData mdm = conn.getMetaData();
                             log.info(String.format("Connected to %s : %s %s (%s)", key, mdm.getDatabaseProductName(), mdm.getDatabaseProductVersion(), mdm.getURL()));
-
-                            connections.put(key, new ThreadLocal<>());
                         }
-                    } catch (IllegalAccessException | InstantiationException | InvocationTargetException | SQLException e) {
+                        checkStatementCache(key, dsSource);
+                    } catch (IllegalAccessException | InstantiationException | InvocationTargetException | SQLException | NumberFormatException e) {
                         log.error("Failed in initializing data source [" + key + "]", e);
                     }
                 }
             });
+
+            replicaGroups.keySet().stream().filter(name -> !dataSources.containsKey(name))
+                    .forEach(name -> log.warn("Replicas of [" + name + "] declared without primary data source."));
+
+            if (replicaGroups.size() > 0) {
+                String interval = ini.get(SECTION_GLOBAL, "replica_check_interval");
+                int seconds = (interval != null) ? Integer.parseInt(interval.trim()) : DEFAULT_REPLICA_CHECK_INTERVAL;
+                replicaChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "DBManager-ReplicaChecker");
+                    t.setDaemon(true);
+                    return t;
+                });
+                replicaChecker.scheduleWithFixedDelay(() -> replicaGroups.values().forEach(ReplicaGroup::check),
+                        seconds, seconds, TimeUnit.SECONDS);
+            }
         } catch (ClassNotFoundException | IOException e) {
             log.error("Failed in initializing data source", e);
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * 检查连接池是否开启了 PreparedStatement 缓存，未开启时每次查询都会重新预编译
+     *
+     * @param name
+     * @param dataSource
+     */
+    private static void checkStatementCache(String name, DataSource dataSource) {
+        if (dataSource.getClass().getName().indexOf("druid") < 0) {
+            return;
+        }
+        try {
+            boolean enabled = (Boolean) PropertyUtils.getProperty(dataSource, "poolPreparedStatements");
+            int size = (Integer) PropertyUtils.getProperty(dataSource, "maxPoolPreparedStatementPerConnectionSize");
+            if (!enabled || size <= 0) {
+                log.warn("[" + name + "] PreparedStatement cache is disabled, set poolPreparedStatements = true in database.ini");
+            } else {
+                log.info(String.format("[%s] PreparedStatement cache enabled, %d statements per connection", name, size));
+            }
+            String url = (String) PropertyUtils.getProperty(dataSource, "url");
+            if (url != null && url.startsWith("jdbc:mysql:") && url.indexOf("useServerPrepStmts=true") < 0) {
+                log.warn("[" + name + "] useServerPrepStmts is off, MySQL statements are prepared on the client side only");
+            }
+        } catch (Exception e) {
+            log.warn("[" + name + "] Failed to check PreparedStatement cache", e);
+        }
+    }
+
     /**
      * 断开连接池
      */
     public final static void close() {
+        AsyncQuery.shutdown();
+        if (replicaChecker != null) {
+            replicaChecker.shutdownNow();
+        }
         dataSources.forEach((name, source) -> {
             try {
                 source.getClass().getMethod("close").invoke(source);
@@ -87,6 +162,43 @@ public class DBManager {
         });
     }
 
+    /**
+     * 连接是否按操作归还（connection_scope = operation）
+     *
+     * @return
+     */
+    public static boolean isOperationScoped() {
+        return operation_scoped;
+    }
+
+    /**
+     * 返回数据源名称，null 表示默认数据源
+     *
+     * @param database
+     * @return
+     */
+    static String name(String database) {
+        return (database != null) ? database : defaultdb;
+    }
+
+    /**
+     * 异步查询的最大并发数（async_threads）
+     *
+     * @return
+     */
+    static int asyncThreads() {
+        return async_threads;
+    }
+
+    /**
+     * ViewCounter 写库间隔（view_count_flush，秒）
+     *
+     * @return
+     */
+    static int viewCountFlushInterval() {
+        return view_count_flush;
+    }
+
     public static Set<String> dataSources() {
         return dataSources.keySet();
     }
@@ -111,6 +223,8 @@ public class DBManager {
                 pool.total = (Integer) PropertyUtils.getProperty(dataSource, "maxActive");
                 pool.busy = (Integer) PropertyUtils.getProperty(dataSource, "activeCount");
                 pool.idle = (Integer) PropertyUtils.getProperty(dataSource, "poolingCount");
+                pool.psCacheHits = (Long) PropertyUtils.getProperty(dataSource, "cachedPreparedStatementHitCount");
+                pool.psCacheMisses = (Long) PropertyUtils.getProperty(dataSource, "cachedPreparedStatementMissCount");
             }
         } catch (Exception e) {
         }
@@ -121,42 +235,140 @@ public class DBManager {
         return getConnection(defaultdb);
     }
 
+    /**
+     * 获取当前线程绑定的主库连接，配置了从库时本次请求后续的读操作也将使用主库
+     *
+     * @param database
+     * @return
+     */
     public final static Connection getConnection(String database) {
+        ThreadLocal<Connection> conns = connections.get(database);
+        DataSource dataSource = dataSources.get(database);
+        if (conns == null || dataSource == null) {
+            throw new DBException("Unknown database [" + database + "].");
+        }
         try {
-            Connection conn = connections.get(database).get();
+            Connection conn = conns.get();
             if (conn == null || conn.isClosed()) {
-                conn = dataSources.get(defaultdb).getConnection();
+                conn = dataSource.getConnection();
                 if (conn == null) {
                     throw new DBException("Failed to get [" + database + "] connection.");
                 }
-                connections.get(database).set(conn);
+                conn = new TracedConnection(conn);
+                conns.set(conn);
             }
-            return (show_sql && !Proxy.isProxyClass(conn.getClass())) ? new _DebugConnection(conn).getConnection() : conn;
+            if (replicaGroups.containsKey(database)) {
+                pin(database);
+            }
+            return conn;
         } catch (SQLException e) {
             throw new DBException(e);
         }
     }
 
     /**
-     * 关闭连接
+     * 获取用于只读查询的连接
+     * 按权重轮询选择健康的从库，没有可用从库或者本次请求已经写过主库时使用主库连接
+     *
+     * @param database
+     * @return
      */
-    public final static void closeConnection() {
-        connections.forEach((key, conns) -> {
+    public final static Connection getReadConnection(String database) {
+        String name = (database != null) ? database : defaultdb;
+        ReplicaGroup group = replicaGroups.get(name);
+        if (group == null || isPinned(name)) {
+            return getConnection(name);
+        }
+        ThreadLocal<Connection> conns = readConnections.get(name);
+        try {
             Connection conn = conns.get();
-            try {
-                if (conn != null && !conn.isClosed()) {
-                    conn.setAutoCommit(true);
-                    conn.close();
+            if (conn == null || conn.isClosed()) {
+                conn = group.connect();
+                if (conn == null) {
+                    return getConnection(name);
                 }
-            } catch (SQLException e) {
-                log.error("[" + key + "] Failed to close connection!!! ", e);
+                conn = new TracedConnection(conn);
+                conns.set(conn);
             }
-            conns.set(null);
-        });
+            return conn;
+        } catch (SQLException e) {
+            throw new DBException(e);
+        }
+    }
+
+    /**
+     * 本次请求后续的读操作使用主库
+     *
+     * @param database
+     */
+    static void pin(String database) {
+        if (database == null) {
+            database = defaultdb;
+        }
+        Set<String> names = pinned.get();
+        if (names == null) {
+            names = new HashSet<>();
+            pinned.set(names);
+        }
+        if (names.add(database)) {
+            //已经借出的从库连接不再使用
+            _CloseConnection(database, readConnections.get(database));
+        }
+    }
+
+    static boolean isPinned(String database) {
+        if (database == null) {
+            database = defaultdb;
+        }
+        Set<String> names = pinned.get();
+        return names != null && names.contains(database);
+    }
+
+    /**
+     * 从连接池中获取一个独立的连接，该连接不与当前线程绑定，由调用者负责关闭
+     *
+     * @param database
+     * @return
+     */
+    public final static Connection openConnection(String database) {
+        String name = (database != null) ? database : defaultdb;
+        DataSource dataSource = dataSources.get(name);
+        if (dataSource == null) {
+            throw new DBException("Unknown database [" + name + "].");
+        }
+        try {
+            Connection conn = dataSource.getConnection();
+            if (conn == null) {
+                throw new DBException("Failed to get [" + name + "] connection.");
+            }
+            return new TracedConnection(conn);
+        } catch (SQLException e) {
+            throw new DBException(e);
+        }
+    }
+
+    /**
+     * 关闭连接，并解除本次请求的主库读绑定
+     */
+    public final static void closeConnection() {
+        connections.forEach((key, conns) -> _CloseConnection(key, conns));
+        readConnections.forEach((key, conns) -> _CloseConnection(key, conns));
+        pinned.remove();
     }
 
     public final static void closeConnection(String database) {
-        Connection conn = connections.get(database).get();
+        if (database == null) {
+            database = defaultdb;
+        }
+        _CloseConnection(database, connections.get(database));
+        _CloseConnection(database, readConnections.get(database));
+    }
+
+    private static void _CloseConnection(String database, ThreadLocal<Connection> conns) {
+        if (conns == null) {
+            return;
+        }
+        Connection conn = conns.get();
         try {
             if (conn != null && !conn.isClosed()) {
                 conn.setAutoCommit(true);
@@ -165,92 +377,110 @@ public class DBManager {
         } catch (SQLException e) {
             log.error("[" + database + "] Failed to close connection!!! ", e);
         }
-        connections.get(database).set(null);
+        conns.remove();
     }
 
     /**
-     * 用于跟踪执行的SQL语句
-     *
-     * @author liudong
+     * 主库的一组从库，按平滑加权轮询选择
      */
-    private static class _DebugConnection implements InvocationHandler {
+    private static class ReplicaGroup {
+
+        private final String name;
+        private final List<Replica> replicas = new ArrayList<>();
 
-        private Connection conn;
+        ReplicaGroup(String name) {
+            this.name = name;
+        }
 
-        public _DebugConnection(Connection conn) {
-            this.conn = conn;
+        synchronized void add(Replica replica) {
+            replicas.add(replica);
         }
 
         /**
-         * Returns the conn.
+         * 平滑加权轮询：每次各节点加上自身权重，选择当前值最大的节点并减去总权重
          *
-         * @return Connection
+         * @return
          */
-        public Connection getConnection() {
-            return (Connection) Proxy.newProxyInstance(conn.getClass().getClassLoader(), conn.getClass().getInterfaces(), this);
-        }
-
-        @Override
-        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
-            long ct = System.currentTimeMillis();
-            try {
-                Object obj = m.invoke(conn, args);
-                String method = m.getName();
-                if ("prepareStatement".equals(method) || "createStatement".equals(method)) {
-                    return new _DebugStatement((String) args[0], (Statement) obj).getStatement();
+        synchronized Replica next() {
+            Replica best = null;
+            int total = 0;
+            for (Replica replica : replicas) {
+                if (!replica.healthy || replica.weight <= 0) {
+                    continue;
+                }
+                replica.current += replica.weight;
+                total += replica.weight;
+                if (best == null || replica.current > best.current) {
+                    best = replica;
                 }
-                return obj;
-            } catch (InvocationTargetException e) {
-                throw e.getTargetException();
             }
-        }
-    }
-
-    /**
-     * 用于跟踪 SQL 的执行结果
-     */
-    private static class _DebugStatement implements InvocationHandler {
-
-        private List<String> methods = Arrays.asList("execute", "executeLargeUpdate", "executeQuery", "executeUpdate");
-
-        private String sql;
-        private Statement statement;
-
-        public _DebugStatement(String sql, Statement stat) {
-            this.sql = sql;
-            this.statement = stat;
+            if (best != null) {
+                best.current -= total;
+            }
+            return best;
         }
 
         /**
-         * 返回 SQL 执行语句实例
+         * 从健康的从库获取连接，获取失败的从库标记为不可用，全部不可用时返回 null
          *
          * @return
          */
-        public Statement getStatement() {
-            return (Statement) Proxy.newProxyInstance(statement.getClass().getClassLoader(), statement.getClass().getInterfaces(), this);
+        Connection connect() {
+            Replica replica;
+            while ((replica = next()) != null) {
+                try {
+                    Connection conn = replica.dataSource.getConnection();
+                    if (conn != null) {
+                        return conn;
+                    }
+                } catch (SQLException e) {
+                    log.error("[" + replica.name + "] Failed to get connection, replica marked down.", e);
+                }
+                replica.healthy = false;
+            }
+            return null;
         }
 
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            long ct = System.currentTimeMillis();
-            try {
-                return method.invoke(statement, args);
-            } catch (InvocationTargetException e) {
-                throw e.getTargetException();
-            } finally {
-                String methodName = method.getName();
-                if (methods.contains(methodName)) {
-                    String logStr = String.format("[SQL -> %dms] >>> %s", (System.currentTimeMillis() - ct), sql);
-                    log.info(logStr);
+        void check() {
+            List<Replica> copy;
+            synchronized (this) {
+                copy = new ArrayList<>(replicas);
+            }
+            for (Replica replica : copy) {
+                boolean healthy;
+                try (Connection conn = replica.dataSource.getConnection()) {
+                    healthy = conn != null && conn.isValid(2);
+                } catch (SQLException e) {
+                    healthy = false;
+                }
+                if (healthy != replica.healthy) {
+                    log.warn(String.format("[%s] replica of %s is %s", replica.name, name, healthy ? "up" : "down"));
+                    replica.healthy = healthy;
                 }
             }
         }
     }
 
+    private static class Replica {
+        private final String name;
+        private final DataSource dataSource;
+        private final int weight;
+        private int current = 0;
+        private volatile boolean healthy = true;
+
+        Replica(String name, DataSource dataSource, int weight) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.weight = weight;
+        }
+    }
+
     public static class PoolStatus {
         public int total = -1;    //总连接数
         public int busy = -1;    //活动连接
         public int idle = -1;    //空闲连接
+        public long psCacheHits = -1;    //PreparedStatement 缓存命中次数
+        public long psCacheMisses = -1;  //PreparedStatement 缓存未命中次数
 
         public int getTotal() {
             return total;
@@ -263,5 +493,23 @@ public class DBManager {
         public int getIdle() {
             return idle;
         }
+
+        public long getPsCacheHits() {
+            return psCacheHits;
+        }
+
+        public long getPsCacheMisses() {
+            return psCacheMisses;
+        }
+
+        /**
+         * PreparedStatement 缓存命中率，无统计数据时返回 -1
+         *
+         * @return
+         */
+        public double getPsCacheHitRate() {
+            long total = psCacheHits + psCacheMisses;
+            return (psCacheHits >= 0 && psCacheMisses >= 0 && total > 0) ? (double) psCacheHits / total : -1;
+        }
     }
 }
\ No newline at end of file
@@ -1,15 +1,25 @@
 package common.db;
 
+import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.handlers.*;
 import org.apache.commons.lang3.ArrayUtils;
+import utils.LongList;
 
 import java.io.Closeable;
 import java.math.BigInteger;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * 数据库查询封装接口，支持多数据库
@@ -18,25 +28,57 @@ import java.util.function.Function;
 public class DBQuery implements Closeable, AutoCloseable {
 
     private final static QueryRunner _g_runner = new QueryRunner();
+    private final static ConcurrentHashMap<Class<?>, Entity> _g_entities = new ConcurrentHashMap<>();   //用于批量加载对象的实例
     private String databaseName;
-    private Connection conn;
 
     private DBQuery(String databaseName) {
         this.databaseName = databaseName;
-        this.conn = (databaseName != null) ? DBManager.getConnection(databaseName) : DBManager.getConnection();
     }
 
     public final static DBQuery get(String... databaseName) {
         return new DBQuery((databaseName.length > 0) ? databaseName[0] : null);
     }
 
+    /**
+     * 返回异步查询接口，每个查询在独立线程中使用独立的连接执行
+     *
+     * @param databaseName
+     * @return
+     */
+    public final static AsyncQuery async(String... databaseName) {
+        return new AsyncQuery((databaseName.length > 0) ? databaseName[0] : null);
+    }
+
+    /**
+     * 返回当前线程绑定的连接，按需从连接池获取
+     *
+     * @return
+     */
     public final Connection conn() {
-        return conn;
+        return (databaseName != null) ? DBManager.getConnection(databaseName) : DBManager.getConnection();
+    }
+
+    /**
+     * 返回只读查询使用的连接，事务中使用主库连接，否则由 DBManager 选择从库
+     *
+     * @return
+     */
+    private Connection readConn() {
+        return (TRANSACTION_LEVEL.get() != null) ? conn() : DBManager.getReadConnection(databaseName);
+    }
+
+    /**
+     * 按操作归还连接的模式下，单次操作结束后立即将连接归还连接池，事务中的连接保持到事务结束
+     */
+    final void release() {
+        if (DBManager.isOperationScoped() && TRANSACTION_LEVEL.get() == null) {
+            DBManager.closeConnection(databaseName);
+        }
     }
 
     public Array array(String typeName, Object[] objs) {
         try {
-            return conn.createArrayOf(typeName, objs);
+            return conn().createArrayOf(typeName, objs);
         } catch (SQLException e) {
             throw new DBException(e);
         }
@@ -51,9 +93,11 @@ public class DBQuery implements Closeable, AutoCloseable {
      */
     public <T> T read(Class<T> beanClass, String sql, Object... params) {
         try {
-            return (T) _g_runner.query(conn, sql, _IsPrimitive(beanClass) ? _g_scaleHandler : new BeanHandler(beanClass), trimSQLParams(sql, params));
+            return (T) _g_runner.query(readConn(), sql, _IsPrimitive(beanClass) ? _g_scaleHandler : RowMapper.beanHandler(beanClass), trimSQLParams(sql, params));
         } catch (SQLException e) {
             throw new DBException(e);
+        } finally {
+            release();
         }
     }
 
@@ -63,10 +107,48 @@ public class DBQuery implements Closeable, AutoCloseable {
 
     public List<Object[]> list(String sql, Object... params) {
         try {
-            return _g_runner.query(conn, sql, new ArrayListHandler(), trimSQLParams(sql, params));
+            return _g_runner.query(readConn(), sql, new ArrayListHandler(), trimSQLParams(sql, params));
+        } catch (SQLException e) {
+            throw new DBException(e);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * 流式查询，结果集通过数据库游标逐行读取，不会一次性加载到内存中，适用于导出、重建索引等大数据量场景
+     * 查询使用独立的数据库连接，返回的 Stream 必须关闭（建议使用 try-with-resources），遍历结束时也会自动关闭
+     * MySQL 使用 fetchSize=Integer.MIN_VALUE 逐行读取，PostgreSQL 在关闭自动提交后按 fetchSize 分批读取
+     *
+     * @param <T>
+     * @param beanClass
+     * @param sql
+     * @param params
+     * @return
+     */
+    public <T> Stream<T> stream(Class<T> beanClass, String sql, Object... params) {
+        Connection sconn = DBManager.openConnection(databaseName);
+        Cursor<T> cursor = new Cursor<>(beanClass, sconn);
+        try {
+            String product = sconn.getMetaData().getDatabaseProductName();
+            cursor.ps = sconn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            if ("MySQL".equalsIgnoreCase(product)) {
+                cursor.ps.setFetchSize(Integer.MIN_VALUE);
+            } else {
+                if ("PostgreSQL".equalsIgnoreCase(product) && sconn.getAutoCommit()) {
+                    //PostgreSQL 只有在事务中才会使用游标读取
+                    sconn.setAutoCommit(false);
+                    cursor.autoCommit = true;
+                }
+                cursor.ps.setFetchSize(STREAM_FETCH_SIZE);
+            }
+            _g_runner.fillStatement(cursor.ps, trimSQLParams(sql, params));
+            cursor.rs = cursor.ps.executeQuery();
         } catch (SQLException e) {
+            cursor.close();
             throw new DBException(e);
         }
+        return StreamSupport.stream(cursor, false).onClose(cursor::close);
     }
 
     /**
@@ -81,9 +163,11 @@ public class DBQuery implements Closeable, AutoCloseable {
     @SuppressWarnings("rawtypes")
     public <T> List<T> query(Class<T> beanClass, String sql, Object... params) {
         try {
-            return (List<T>) _g_runner.query(conn, sql, _IsPrimitive(beanClass) ? _g_columnListHandler : new BeanListHandler(beanClass), trimSQLParams(sql, params));
+            return (List<T>) _g_runner.query(readConn(), sql, _IsPrimitive(beanClass) ? _g_columnListHandler : RowMapper.listHandler(beanClass), trimSQLParams(sql, params));
         } catch (SQLException e) {
             throw new DBException(e);
+        } finally {
+            release();
         }
     }
 
@@ -122,8 +206,52 @@ public class DBQuery implements Closeable, AutoCloseable {
         return query(beanClass, sql + " LIMIT ? OFFSET ?", ArrayUtils.addAll(params, new Object[]{count, from}));
     }
 
+    /**
+     * 基于主键游标的分页查询（按 id 倒序），使用 id < lastId 定位下一页，查询耗时与页码深度无关
+     * 查询条件与游标条件分开传入，不解析调用方的 SQL，生成的语句为
+     * select WHERE (filter) AND id < ? ORDER BY id DESC LIMIT ?
+     *
+     * @param <T>
+     * @param beanClass
+     * @param select    不带 WHERE、ORDER BY 及 LIMIT 的查询语句，例如 SELECT * FROM osc_users
+     * @param filter    查询条件，不包含 ORDER BY，为 null 时不加条件
+     * @param lastId    上一页返回的游标，第一页传 0
+     * @param count
+     * @param params    filter 中的参数
+     * @return
+     */
+    public <T extends Entity> KeysetPage<T> query_after(Class<T> beanClass, String select, String filter, long lastId, int count, Object... params) {
+        if (lastId < 0 || count <= 0) {
+            throw new IllegalArgumentException("Illegal parameter of 'lastId' or 'count', Must be positive.");
+        }
+        boolean hasFilter = (filter != null && filter.trim().length() > 0);
+        StringBuilder keyset_sql = new StringBuilder(select.length() + (hasFilter ? filter.length() : 0) + 48);
+        keyset_sql.append(select);
+        if (hasFilter) {
+            keyset_sql.append(" WHERE (").append(filter).append(')');
+        }
+        Object[] keyset_params;
+        if (lastId > 0) {
+            keyset_sql.append(hasFilter ? " AND id < ?" : " WHERE id < ?");
+            keyset_params = ArrayUtils.addAll(params, new Object[]{lastId, count + 1});
+        } else {
+            keyset_params = ArrayUtils.addAll(params, new Object[]{count + 1});
+        }
+        keyset_sql.append(" ORDER BY id DESC LIMIT ?");
+        //多取一条用于判断是否还有下一页
+        List<T> objs = query(beanClass, keyset_sql.toString(), keyset_params);
+        if (objs.size() > count) {
+            objs = objs.subList(0, count);
+            return new KeysetPage<>(new ArrayList<>(objs), objs.get(count - 1).getId());
+        }
+        return new KeysetPage<>(objs, 0);
+    }
+
     /**
      * 支持缓存的分页查询
+     * 结果按 cache_obj_count 条一块缓存，第一块的缓存键为 cache_key，第 n 块为 cache_key#n，
+     * 任意页都由所覆盖的块拼接而成。带 @Cache 注解的实体类在块中只保存有序的 id，
+     * 对象本身通过按 id 的对象缓存读取，不同页之间不再重复保存对象。
      *
      * @param <T>
      * @param beanClass
@@ -136,33 +264,183 @@ public class DBQuery implements Closeable, AutoCloseable {
      * @param params
      * @return
      */
+    @SuppressWarnings("unchecked")
     public <T> List<T> query_slice_cache(Class<T> beanClass,
                                          String cache, String cache_key, int cache_obj_count,
                                          String sql, int page, int count, Object... params) {
-        List<T> objs = (List<T>) CacheMgr.get(cache, cache_key, (key) -> query_slice(beanClass, sql, 1, cache_obj_count, params));
-        if (objs == null || objs.size() == 0) {
-            return objs;
-        }
         int from = (page - 1) * count;
-        if (from < 0) {
+        if (from < 0 || count <= 0 || cache_obj_count <= 0) {
             return null;
         }
-        if ((from + count) > cache_obj_count) {// 超出缓存的范围
-            //RequestContext rc = RequestContext.get();//common 包不应该调用 src 仅供调试时使用
-            //log.warn("query_slice_cache cache missed! ip="+rc.ip()+",class="+beanClass.getSimpleName()+",cache="+cache+",key="+cache_key+",page="+page+",count="+count+",uri="+rc.uri());
-            //String cache = (page > 10)?"1d":CACHE_TopNews;
-            return cache_query_slice("1d", cache + ':' + cache_key, beanClass, sql, page, count, params);
+        boolean byId = Entity.class.isAssignableFrom(beanClass) && beanClass.isAnnotationPresent(Entity.Cache.class);
+        int end = from + count;
+        List<T> objs = new ArrayList<>(count);
+        LongList ids = new LongList(count);
+        for (int block = from / cache_obj_count; (long) block * cache_obj_count < end; block++) {
+            int block_from = block * cache_obj_count;
+            Object slice = slice_block(beanClass, byId, cache, cache_key, cache_obj_count, block, sql, params);
+            if (slice == null) {
+                break;
+            }
+            long[] block_ids = (byId && slice instanceof List) ? idsOf((List<Entity>) slice) : null;
+            if (byId && block_ids == null) {
+                block_ids = (long[]) slice;
+            }
+            int size = (block_ids != null) ? block_ids.length : ((List<T>) slice).size();
+            int hi = Math.min(end - block_from, size);
+            for (int i = Math.max(from - block_from, 0); i < hi; i++) {
+                if (block_ids != null) {
+                    ids.add(block_ids[i]);
+                } else {
+                    objs.add(((List<T>) slice).get(i));
+                }
+            }
+            if (size < cache_obj_count) {   //最后一块
+                break;
+            }
         }
-        int end = Math.min(from + count, objs.size());
-        if (from >= end) {
-            return null;
+        if (!ids.isEmpty()) {
+            List<T> beans = _g_entities.computeIfAbsent(beanClass, DBQuery::_NewEntity).loadList(ids.toArray());
+            for (T bean : beans) {
+                if (bean != null) { //缓存 id 之后被删除的对象
+                    objs.add(bean);
+                }
+            }
+        }
+        return (objs.isEmpty() && from > 0) ? null : objs;
+    }
+
+    /**
+     * 读取分页缓存的一块，byId 时返回 long[]，否则返回对象列表
+     */
+    private Object slice_block(Class<?> beanClass, boolean byId, String cache, String cache_key, int block_size,
+                               int block, String sql, Object[] params) {
+        String key = (block == 0) ? cache_key : cache_key + '#' + block;
+        return CacheMgr.get(cache, key, k -> {
+            List<?> beans = query_slice(beanClass, sql, block + 1, block_size, params);
+            if (!byId) {
+                return beans;
+            }
+            Map<String, Object> elements = new HashMap<>(beans.size() * 4 / 3 + 1);
+            for (Object bean : beans) {
+                elements.put(String.valueOf(((Entity) bean).getId()), bean);
+            }
+            if (elements.size() > 0) {
+                CacheMgr.set(((Entity) beans.get(0)).cacheRegion(), elements);
+            }
+            return idsOf((List<Entity>) beans);
+        });
+    }
+
+    private static Entity _NewEntity(Class<?> cls) {
+        try {
+            return (Entity) cls.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new DBException("Failed to create instance of " + cls.getName(), e);
+        }
+    }
+
+    private static long[] idsOf(List<? extends Entity> beans) {
+        long[] ids = new long[beans.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = beans.get(i).getId();
+        }
+        return ids;
+    }
+
+    /**
+     * 执行以一段 id 数组为参数的查询，id 以 long 直接绑定，不经过装箱
+     *
+     * @param beanClass
+     * @param sql       参数个数为 to - from
+     * @param ids
+     * @param from
+     * @param to
+     * @return
+     */
+    <T> List<T> query_ids(Class<T> beanClass, String sql, long[] ids, int from, int to) {
+        try (PreparedStatement ps = readConn().prepareStatement(sql)) {
+            for (int i = from; i < to; i++) {
+                ps.setLong(i - from + 1, ids[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                return RowMapper.listHandler(beanClass).handle(rs);
+            }
+        } catch (SQLException e) {
+            throw new DBException(e);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * 执行查询并自动缓存结果，缓存键由 SQL、参数及所涉及表的版本号组成，表被修改后缓存自动失效
+     * 事务中不使用缓存
+     *
+     * @param beanClass
+     * @param sql
+     * @param params
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> query_auto_cache(Class<T> beanClass, String sql, Object... params) {
+        if (TRANSACTION_LEVEL.get() != null) {
+            return query(beanClass, sql, params);
+        }
+        String key = QueryCache.key(DBManager.name(databaseName), beanClass.getName(), sql, params);
+        return (List<T>) CacheMgr.get(QueryCache.REGION, key, k -> query(beanClass, sql, params));
+    }
+
+    /**
+     * 读取单个对象并自动缓存，参见 query_auto_cache
+     *
+     * @param beanClass
+     * @param sql
+     * @param params
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T read_auto_cache(Class<T> beanClass, String sql, Object... params) {
+        if (TRANSACTION_LEVEL.get() != null) {
+            return read(beanClass, sql, params);
+        }
+        String key = QueryCache.key(DBManager.name(databaseName), "1:" + beanClass.getName(), sql, params);
+        return (T) CacheMgr.get(QueryCache.REGION, key, k -> read(beanClass, sql, params));
+    }
+
+    /**
+     * 执行统计查询并自动缓存，参见 query_auto_cache
+     *
+     * @param sql
+     * @param params
+     * @return
+     */
+    public int stat_auto_cache(String sql, Object... params) {
+        if (TRANSACTION_LEVEL.get() != null) {
+            return stat(sql, params);
         }
-        return objs.subList(from, end);
+        String key = QueryCache.key(DBManager.name(databaseName), "#", sql, params);
+        Number value = (Number) CacheMgr.get(QueryCache.REGION, key, k -> stat(sql, params));
+        return (value != null) ? value.intValue() : -1;
+    }
+
+    /**
+     * 标记表已被修改，使自动缓存的查询结果失效；事务中在提交后生效
+     * 通过 batch(Function) 直接使用连接写库时需要调用此方法
+     *
+     * @param tables
+     */
+    public void touch(String... tables) {
+        QueryCache.touch(DBManager.name(databaseName), TRANSACTION_LEVEL.get() != null, tables);
     }
 
-    private <T> List<T> cache_query_slice(String cache, String cache_key, Class<T> cls, String sql, int page, int count, Object... params) {
-        String key = cache_key + "#slice#" + page + "#" + count;
-        return (List<T>) CacheMgr.get(cache, key, (k) -> query_slice(cls, sql, page, count, trimSQLParams(sql, params)));
+    /**
+     * 标记写操作 SQL 所涉及的表已被修改
+     *
+     * @param sql
+     */
+    void touchSQL(String sql) {
+        touch(QueryCache.tables(sql));
     }
 
     /**
@@ -174,10 +452,12 @@ public class DBQuery implements Closeable, AutoCloseable {
      */
     public int stat(String sql, Object... params) {
         try {
-            Number num = (Number) _g_runner.query(conn, sql, _g_scaleHandler, trimSQLParams(sql, params));
+            Number num = (Number) _g_runner.query(readConn(), sql, _g_scaleHandler, trimSQLParams(sql, params));
             return (num != null) ? num.intValue() : -1;
         } catch (SQLException e) {
             throw new DBException(e);
+        } finally {
+            release();
         }
     }
 
@@ -214,9 +494,13 @@ public class DBQuery implements Closeable, AutoCloseable {
      */
     public int update(String sql, Object... params) {
         try {
-            return _g_runner.update(conn, sql, trimSQLParams(sql, params));
+            int n = _g_runner.update(conn(), sql, trimSQLParams(sql, params));
+            touchSQL(sql);
+            return n;
         } catch (SQLException e) {
             throw new DBException(e);
+        } finally {
+            release();
         }
     }
 
@@ -229,12 +513,14 @@ public class DBQuery implements Closeable, AutoCloseable {
      */
     public int[] batch(String sql, Object[][] params) {
         try {
+            Connection conn = conn();
             boolean automit = true;
             try {
                 automit = conn.getAutoCommit();
                 conn.setAutoCommit(false);
                 int[] m = _g_runner.batch(conn, sql, params);
                 conn.commit();
+                touchSQL(sql);
                 return m;
             } catch (SQLException e) {
                 conn.rollback();
@@ -244,6 +530,8 @@ public class DBQuery implements Closeable, AutoCloseable {
             }
         } catch (SQLException e) {
             throw new DBException(e);
+        } finally {
+            release();
         }
     }
 
@@ -254,49 +542,120 @@ public class DBQuery implements Closeable, AutoCloseable {
      * @throws Exception
      */
     public Object batch(Function<Connection, Object> executor) {
+        Integer level = TRANSACTION_LEVEL.get();
+        boolean AlreadyBeginTransaction = (level != null); //判断是否已经启动了事务处理
+        TRANSACTION_LEVEL.set(AlreadyBeginTransaction ? level + 1 : 1);
         try {
-            Object result;
-            Integer level = TRANSACTION_LEVEL.get();
-            boolean AlreadyBeginTransaction = (level != null); //判断是否已经启动了事务处理
+            //事务中的所有操作都使用同一个连接，直到最外层事务结束
+            Connection conn = conn();
             Boolean autoCommit = null;
             try {
-                if (level == null) {
+                if (!AlreadyBeginTransaction) {
                     autoCommit = conn.getAutoCommit();
-                    level = 1;
-                } else {
-                    level = level + 1;
-                }
-                TRANSACTION_LEVEL.set(level);
-                if (!AlreadyBeginTransaction && conn.getAutoCommit()) {
-                    conn.setAutoCommit(false);
+                    if (autoCommit) {
+                        conn.setAutoCommit(false);
+                    }
                 }
-                result = executor.apply(conn);
-                level = level - 1;
-                TRANSACTION_LEVEL.set(level);
-                if (level == 0) {
+                Object result = executor.apply(conn);
+                if (!AlreadyBeginTransaction) {
                     conn.commit();
-                    TRANSACTION_LEVEL.remove();
+                    QueryCache.commit();
                 }
-            } catch (SQLException e) {
-                if (conn != null && !AlreadyBeginTransaction) {
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                if (!AlreadyBeginTransaction) {
+                    QueryCache.rollback();
                     conn.rollback();
                 }
                 throw e;
             } finally {
-                if (autoCommit != null && !AlreadyBeginTransaction) {
+                if (autoCommit != null) {
                     try {
                         conn.setAutoCommit(autoCommit);
                     } catch (SQLException e) {
                     }
                 }
             }
-            return result;
         } catch (SQLException e) {
             throw new DBException(e);
+        } finally {
+            if (AlreadyBeginTransaction) {
+                TRANSACTION_LEVEL.set(level);
+            } else {
+                TRANSACTION_LEVEL.remove();
+                release();
+            }
         }
     }
 
     private final static ThreadLocal<Integer> TRANSACTION_LEVEL = new ThreadLocal<Integer>();
+    private final static int STREAM_FETCH_SIZE = 500;
+
+    /**
+     * 流式查询的游标，持有独立的连接，关闭时释放语句与连接
+     *
+     * @param <T>
+     */
+    private static class Cursor<T> extends Spliterators.AbstractSpliterator<T> {
+
+        private final Class<T> beanClass;
+        private final Connection conn;
+        private PreparedStatement ps;
+        private ResultSet rs;
+        private RowMapper<T> mapper;
+        private boolean autoCommit = false;
+        private boolean closed = false;
+
+        Cursor(Class<T> beanClass, Connection conn) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.beanClass = beanClass;
+            this.conn = conn;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (!rs.next()) {
+                    close();
+                    return false;
+                }
+                if (_IsPrimitive(beanClass)) {
+                    Object obj = rs.getObject(1);
+                    action.accept((T) ((obj instanceof BigInteger) ? ((BigInteger) obj).longValue() : obj));
+                } else {
+                    if (mapper == null) {
+                        mapper = RowMapper.of(beanClass, rs);
+                    }
+                    action.accept(mapper.toBean(rs));
+                }
+                return true;
+            } catch (SQLException e) {
+                close();
+                throw new DBException(e);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            DbUtils.closeQuietly(rs);
+            DbUtils.closeQuietly(ps);
+            try {
+                if (autoCommit) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+            }
+            DbUtils.closeQuietly(conn);
+        }
+    }
 
     private final static ColumnListHandler _g_columnListHandler = new ColumnListHandler() {
         @Override
@@ -1,11 +1,14 @@
 package common.db;
 
 import common.framework.Inflector;
+import net.oschina.j2cache.CacheObject;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import utils.LongIntMap;
+import utils.LongList;
 import utils.StringUtils;
 
 import java.beans.IntrospectionException;
@@ -32,6 +35,8 @@ public abstract class Entity implements Serializable {
     private static final Logger log = LoggerFactory.getLogger(Entity.class);
 
     private static final int CACHE_OBJ = 1000;//缓存的数量
+    private static final int SAVE_BATCH_SIZE = 500;//批量插入时每批的记录数
+    private static final int LOAD_BATCH_SIZE = 500;//批量加载时每条 IN 查询的最大 id 数
 
     public final static transient byte CONTENT_MARKDOWN = 0x01; // Markdown
     public final static transient byte CONTENT_UEDITOR = 0x02; // UEDITOR
@@ -125,6 +130,30 @@ public abstract class Entity implements Serializable {
         return DBQuery.get(databaseName()).query_slice(getClass(), sql, page, size);
     }
 
+    /**
+     * 基于主键游标分页列出对象（按 id 倒序），适用于深度翻页
+     *
+     * @param lastId 上一页返回的游标，第一页传 0
+     * @param size
+     * @return
+     */
+    public KeysetPage<? extends Entity> listAfter(long lastId, int size) {
+        return DBQuery.get(databaseName()).query_after(getClass(), "SELECT * FROM " + rawTableName(), null, lastId, size);
+    }
+
+    /**
+     * 基于主键游标分页查询符合条件的对象（按 id 倒序）
+     *
+     * @param filter 查询条件，不包含 ORDER BY
+     * @param lastId 上一页返回的游标，第一页传 0
+     * @param size
+     * @param params
+     * @return
+     */
+    public KeysetPage<? extends Entity> filterAfter(String filter, long lastId, int size, Object... params) {
+        return DBQuery.get(databaseName()).query_after(getClass(), "SELECT * FROM " + rawTableName(), filter, lastId, size, params);
+    }
+
     public List<? extends Entity> listOfSpace(long space) {
         String sql = "SELECT * FROM " + tableName() + " WHERE space=? ORDER BY sort_order";
         return DBQuery.get(databaseName()).query_cache(getClass(), false, CacheRegion(), "LIST#" + space, sql, space);
@@ -191,6 +220,91 @@ public abstract class Entity implements Serializable {
         return getId();
     }
 
+    /**
+     * 批量插入对象，使用默认的批次大小
+     *
+     * @param objs
+     * @return 与输入顺序一致的对象主键
+     */
+    public static long[] saveAll(Collection<? extends Entity> objs) {
+        return saveAll(objs, SAVE_BATCH_SIZE);
+    }
+
+    /**
+     * 批量插入对象
+     * 语句相同（同一张表且写入字段相同）的对象合并为 JDBC batch 执行，每批 batchSize 条并单独提交，
+     * 插入完成后按缓存区域批量清除缓存。
+     *
+     * @param objs
+     * @param batchSize 每批的记录数
+     * @return 与输入顺序一致的对象主键，无法获取主键的为 -1
+     */
+    public static long[] saveAll(Collection<? extends Entity> objs, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Illegal parameter of 'batchSize', Must be positive.");
+        }
+        Entity[] beans = objs.toArray(new Entity[objs.size()]);
+        long[] ids = new long[beans.length];
+        //按数据库及 SQL 分组，记录每个对象在输入中的位置
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        PersistPlan.Insert[] inserts = new PersistPlan.Insert[beans.length];
+        for (int i = 0; i < beans.length; i++) {
+            inserts[i] = PersistPlan.insert(beans[i]);
+            groups.computeIfAbsent(beans[i].databaseName() + '\n' + inserts[i].sql, k -> new ArrayList<>()).add(i);
+        }
+
+        for (List<Integer> group : groups.values()) {
+            Entity first = beans[group.get(0)];
+            String sql = inserts[group.get(0)].sql;
+            DBQuery query = DBQuery.get(first.databaseName());
+            for (int from = 0; from < group.size(); from += batchSize) {
+                List<Integer> chunk = group.subList(from, Math.min(from + batchSize, group.size()));
+                query.batch(conn -> {
+                    try (PreparedStatement ps = conn.prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS)) {
+                        for (int idx : chunk) {
+                            Object[] params = inserts[idx].params;
+                            for (int i = 0; i < params.length; i++) {
+                                ps.setObject(i + 1, params[i]);
+                            }
+                            ps.addBatch();
+                        }
+                        ps.executeBatch();
+                        query.touchSQL(sql);
+                        try (ResultSet rs = ps.getGeneratedKeys()) {
+                            for (int idx : chunk) {
+                                if (beans[idx].getId() > 0) {
+                                    ids[idx] = beans[idx].getId();
+                                } else {
+                                    ids[idx] = (rs != null && rs.next()) ? rs.getLong(1) : -1;
+                                    beans[idx].setId(ids[idx]);
+                                }
+                            }
+                        }
+                    } catch (SQLException e) {
+                        throw new DBException(e);
+                    }
+                    return null;
+                });
+            }
+        }
+
+        //批量清除缓存
+        Map<String, List<String>> evicts = new HashMap<>();
+        for (Entity bean : beans) {
+            if (bean.cachedByID()) {
+                List<String> keys = evicts.computeIfAbsent(bean.cacheRegion(), k -> new ArrayList<>());
+                if (keys.isEmpty()) {
+                    keys.add(OBJ_COUNT_CACHE_KEY);
+                }
+                if (bean.cacheNullObject()) {
+                    keys.add(String.valueOf(bean.getId()));
+                }
+            }
+        }
+        evicts.forEach((region, keys) -> CacheMgr.evict(region, keys.toArray(new String[keys.size()])));
+        return ids;
+    }
+
     /**
      * 根据id主键删除对象
      *
@@ -282,23 +396,53 @@ public abstract class Entity implements Serializable {
         if (ids == null || ids.size() == 0) {
             return null;
         }
-        StringBuilder sql = new StringBuilder("SELECT * FROM " + rawTableName() + " WHERE id IN (");
-        for (int i = 1; i <= ids.size(); i++) {
-            sql.append('?');
-            if (i < ids.size()) {
-                sql.append(',');
+        return get(toArray(ids));
+    }
+
+    /**
+     * 根据 id 批量读取对象，id 以 long 直接绑定到 SQL 参数
+     *
+     * @param ids
+     * @return
+     */
+    public List<? extends Entity> get(long[] ids) {
+        if (ids == null || ids.length == 0) {
+            return null;
+        }
+        List<Entity> beans = new ArrayList<>(ids.length);
+        DBQuery query = DBQuery.get(databaseName());
+        //IN 列表过长时分批查询
+        for (int from = 0; from < ids.length; from += LOAD_BATCH_SIZE) {
+            int to = Math.min(from + LOAD_BATCH_SIZE, ids.length);
+            StringBuilder sql = new StringBuilder("SELECT * FROM " + rawTableName() + " WHERE id IN (");
+            for (int i = from; i < to; i++) {
+                sql.append('?');
+                if (i < to - 1) {
+                    sql.append(',');
+                }
             }
+            sql.append(')');
+            beans.addAll(query.query_ids(getClass(), sql.toString(), ids, from, to));
         }
-        sql.append(')');
-        List<? extends Entity> beans = DBQuery.get(databaseName()).query(getClass(), sql.toString(), ids.toArray(new Object[ids.size()]));
-        if (cachedByID()) {
-            for (Object bean : beans) {
-                CacheMgr.set(cacheRegion(), String.valueOf(((Entity) bean).getId()), bean);
+        if (cachedByID() && beans.size() > 0) {
+            Map<String, Object> elements = new HashMap<>(beans.size() * 4 / 3 + 1);
+            for (Entity bean : beans) {
+                elements.put(String.valueOf(bean.getId()), bean);
             }
+            CacheMgr.set(cacheRegion(), elements);
         }
         return beans;
     }
 
+    private static long[] toArray(Collection<Long> ids) {
+        long[] array = new long[ids.size()];
+        int i = 0;
+        for (Long id : ids) {
+            array[i++] = id;
+        }
+        return array;
+    }
+
     /**
      * 统计此对象的总记录数
      *
@@ -323,48 +467,64 @@ public abstract class Entity implements Serializable {
         if (CollectionUtils.isEmpty(p_pids)) {
             return null;
         }
+        return loadList(toArray(p_pids));
+    }
 
-        if (p_pids.size() == 0) {
-            return new ArrayList();
+    /**
+     * 批量加载项目，返回的列表与 pids 一一对应，不存在的对象为 null
+     *
+     * @param pids
+     * @return
+     */
+    @SuppressWarnings({"rawtypes"})
+    public List loadList(long[] pids) {
+        if (pids == null || pids.length == 0) {
+            return null;
         }
 
-        final List<Long> pids = new ArrayList<Long>(p_pids.size());
-        for (Long obj : p_pids) {
-            pids.add(obj);
-        }
-        List<Entity> prjs = new ArrayList<Entity>(pids.size()) {
-            {
-                for (int i = 0; i < pids.size(); i++) {
-                    add(null);
-                }
+        //去重后的 id 及其在 objs 中的下标
+        LongIntMap index = new LongIntMap(pids.length);
+        LongList uniq = new LongList(pids.length);
+        for (long pid : pids) {
+            if (index.putIfAbsent(pid, uniq.size())) {
+                uniq.add(pid);
             }
-        };
-        List<Long> no_cache_ids = new ArrayList<>();
-        if (this.cachedByID()) {
-            String cache = this.cacheRegion();
-            for (int i = 0; i < pids.size(); i++) {
-                long pid = pids.get(i);
-                Entity obj = (Entity) CacheMgr.get(cache, String.valueOf(pid));
+        }
+        Entity[] objs = new Entity[uniq.size()];
 
-                if (obj != null) {
-                    prjs.set(i, obj);
-                } else {
-                    no_cache_ids.add(pid);
+        LongList no_cache_ids = new LongList();
+        if (this.cachedByID()) {
+            List<String> keys = new ArrayList<>(uniq.size());
+            for (int i = 0; i < uniq.size(); i++) {
+                keys.add(String.valueOf(uniq.get(i)));
+            }
+            Map<String, CacheObject> cached = CacheMgr.get(this.cacheRegion(), keys);
+            for (int i = 0; i < uniq.size(); i++) {
+                CacheObject obj = (cached != null) ? cached.get(keys.get(i)) : null;
+                objs[i] = (obj != null) ? (Entity) obj.getValue() : null;
+                if (objs[i] == null) {
+                    no_cache_ids.add(uniq.get(i));
                 }
             }
         } else {
-            no_cache_ids.addAll(p_pids);
+            for (int i = 0; i < uniq.size(); i++) {
+                no_cache_ids.add(uniq.get(i));
+            }
         }
 
         if (no_cache_ids.size() > 0) {
-            List<? extends Entity> no_cache_prjs = get(no_cache_ids);
+            List<? extends Entity> no_cache_prjs = get(no_cache_ids.toArray());
             if (no_cache_prjs != null) {
                 for (Entity obj : no_cache_prjs) {
-                    prjs.set(pids.indexOf(obj.getId()), obj);
+                    objs[index.get(obj.getId(), 0)] = obj;
                 }
             }
         }
 
+        List<Entity> prjs = new ArrayList<>(pids.length);
+        for (long pid : pids) {
+            prjs.add(objs[index.get(pid, 0)]);
+        }
         return prjs;
     }
 
@@ -390,12 +550,14 @@ public abstract class Entity implements Serializable {
     public int executeInsertOrUpdateSQLAndReturnId(String sql, Object... params) {
         PreparedStatement ps = null;
         ResultSet rs = null;
+        DBQuery query = DBQuery.get(databaseName());
         try {
-            ps = DBQuery.get(databaseName()).conn().prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS);
+            ps = query.conn().prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS);
             for (int i = 0; i < params.length; i++) {
                 ps.setObject(i + 1, params[i]);
             }
             ps.executeUpdate();
+            query.touchSQL(sql);
             rs = ps.getGeneratedKeys();
             return rs.next() ? rs.getInt(1) : -1;
         } catch (SQLException e) {
@@ -403,6 +565,7 @@ public abstract class Entity implements Serializable {
         } finally {
             DbUtils.closeQuietly(rs);
             DbUtils.closeQuietly(ps);
+            query.release();
         }
     }
 
@@ -413,48 +576,27 @@ public abstract class Entity implements Serializable {
      * @return 返回插入对象的主键
      */
     private long _InsertObject(Entity obj) {
-        Map<String, Object> pojo_bean = obj.listInsertableFields();
-        if (this.getId() > 0) {
-            pojo_bean.put("id", this.getId());
-        }
-        String[] fields = pojo_bean.keySet().stream().toArray(String[]::new);
-        StringBuilder sql = new StringBuilder("INSERT INTO ");
-        sql.append(obj.rawTableName());
-        //双引号导致  形如 INSERT INTO osc_blogs("origin_url","abstracts","catalog","project", 语法异常，此处修改剔除双引号
-        //修改为反单引号
-        //sql.append("(\"");
-        sql.append("(`");
-        for (int i = 0; i < fields.length; i++) {
-            if (i > 0) {
-                sql.append("`,`");
-            }
-            sql.append(fields[i]);
-        }
-        //sql.append("\") VALUES(");
-        sql.append("`) VALUES(");
-        for (int i = 0; i < fields.length; i++) {
-            if (i > 0) {
-                sql.append(',');
-            }
-            sql.append('?');
-        }
-        sql.append(')');
-        try (PreparedStatement ps = DBQuery.get(databaseName()).conn().prepareStatement(sql.toString(),
+        PersistPlan.Insert insert = PersistPlan.insert(obj);
+        DBQuery query = DBQuery.get(databaseName());
+        try (PreparedStatement ps = query.conn().prepareStatement(insert.sql,
                 PreparedStatement.RETURN_GENERATED_KEYS)) {
-            for (int i = 0; i < fields.length; i++) {
-                ps.setObject(i + 1, pojo_bean.get(fields[i]));
+            for (int i = 0; i < insert.params.length; i++) {
+                ps.setObject(i + 1, insert.params[i]);
             }
 
             ps.executeUpdate();
+            query.touchSQL(insert.sql);
             if (getId() > 0) {
                 return getId();
             }
 
             try (ResultSet rs = ps.getGeneratedKeys()) {
-                return rs.next() ? rs.getInt(1) : -1;
+                return rs.next() ? rs.getLong(1) : -1;
             }
         } catch (SQLException e) {
             throw new DBException(e);
+        } finally {
+            query.release();
         }
     }
 
@@ -465,6 +607,17 @@ public abstract class Entity implements Serializable {
      */
     protected Map<String, Object> listInsertableFields() {
         Map<String, Object> props = new HashMap<>();
+        PersistPlan plan = PersistPlan.of(this);
+        if (plan != null) {
+            Object[] values = plan.values(this);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    props.put(plan.field(i), values[i]);
+                }
+            }
+            return props;
+        }
+        //子类覆盖了此方法，仅在其调用 super 时才会走到这里
         try {
             PropertyDescriptor[] fields = Introspector.getBeanInfo(getClass()).getPropertyDescriptors();
             for (PropertyDescriptor field : fields) {
@@ -531,21 +684,20 @@ public abstract class Entity implements Serializable {
 
     //更新对象
     public boolean doUpdate() {
+        PersistPlan plan = PersistPlan.of(this);
+        if (plan != null) {
+            Object[] values = plan.values(this);
+            return DBQuery.get(databaseName()).update(plan.updateSQL(tableName(), values), plan.updateParams(values, getId())) > 0;
+        }
         Map<String, Object> map = listInsertableFields();
         Object id = map.remove("id");
-        Set<Map.Entry<String, Object>> entrys = map.entrySet();
-        int size = entrys.size();
-        Object[] params = new Object[entrys.size()];
-        StringBuilder sql = new StringBuilder("update ").append(tableName()).append(" set ");
-        int index = 0;
-        for (Map.Entry<String, Object> entry : entrys) {
-            sql.append("`" + entry.getKey() + "`").append("=?,");
-            params[index] = entry.getValue();
-            index++;
+        String[] fields = map.keySet().stream().toArray(String[]::new);
+        Object[] params = new Object[fields.length + 1];
+        for (int i = 0; i < fields.length; i++) {
+            params[i] = map.get(fields[i]);
         }
-        sql.replace(sql.length() - 1, sql.length(), " where id=");
-        sql.append(id);
-        return DBQuery.get(databaseName()).update(sql.toString(), params) > 0;
+        params[fields.length] = id;
+        return DBQuery.get(databaseName()).update(PersistPlan.buildUpdateSQL(tableName(), fields), params) > 0;
     }
 
     /**
@@ -556,23 +708,85 @@ public abstract class Entity implements Serializable {
      * @return
      */
     public void UpdateViewCount(Map<Long, Integer> datas, boolean update_cache) {
+        if (datas == null || datas.size() == 0) {
+            return;
+        }
+        LongIntMap counts = new LongIntMap(datas.size());
+        datas.forEach((id, count) -> counts.put(id, count));
+        UpdateViewCount(counts, update_cache);
+    }
+
+    /**
+     * 更新浏览数
+     *
+     * @param datas id -> 新增的浏览数
+     * @param update_cache
+     */
+    public void UpdateViewCount(LongIntMap datas, boolean update_cache) {
+        if (datas == null || datas.isEmpty()) {
+            return;
+        }
         String sql = "UPDATE " + tableName() + " SET view_count=view_count+? WHERE id=?";
-        int i = 0;
-        Object[][] args = new Object[datas.size()][2];
-        for (long id : datas.keySet()) {
-            int count = datas.get(id);
-            args[i][1] = id;
-            args[i][0] = count;
-            if (update_cache) {
-                Entity obj = (Entity) CacheMgr.get(CacheRegion(), String.valueOf(id));
+        DBQuery query = DBQuery.get(databaseName());
+        query.batch(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                SQLException[] error = new SQLException[1];
+                datas.forEach((id, count) -> {
+                    if (error[0] == null) {
+                        try {
+                            ps.setInt(1, count);
+                            ps.setLong(2, id);
+                            ps.addBatch();
+                        } catch (SQLException e) {
+                            error[0] = e;
+                        }
+                    }
+                });
+                if (error[0] != null) {
+                    throw error[0];
+                }
+                int[] result = ps.executeBatch();
+                query.touchSQL(sql);
+                return result;
+            } catch (SQLException e) {
+                throw new DBException(e);
+            }
+        });
+        if (update_cache && cachedByID()) {
+            //数据库已经提交，缓存更新失败时只记录日志，不能让调用方重试而重复累加
+            try {
+                updateCachedViewCount(datas);
+            } catch (RuntimeException e) {
+                log.error("Failed to update cached view count of " + getClass().getName(), e);
+            }
+        }
+    }
+
+    /**
+     * 批量读取缓存中的对象，更新浏览数后批量写回
+     */
+    private void updateCachedViewCount(LongIntMap datas) {
+        String region = cacheRegion();
+        long[] ids = datas.keys();
+        List<String> keys = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            keys.add(String.valueOf(id));
+        }
+        Map<String, CacheObject> cached = CacheMgr.get(region, keys);
+        if (cached != null && cached.size() > 0) {
+            Map<String, Object> elements = new HashMap<>(cached.size() * 4 / 3 + 1);
+            for (int i = 0; i < ids.length; i++) {
+                CacheObject co = cached.get(keys.get(i));
+                Entity obj = (co != null) ? (Entity) co.getValue() : null;
                 if (obj != null) {
-                    obj.setView_count(obj.getView_count() + count);
-                    CacheMgr.set(CacheRegion(), String.valueOf(id), obj);
+                    obj.setView_count(obj.getView_count() + datas.get(ids[i], 0));
+                    elements.put(keys.get(i), obj);
                 }
             }
-            i++;
+            if (elements.size() > 0) {
+                CacheMgr.set(region, elements);
+            }
         }
-        DBQuery.get(databaseName()).batch(sql, args);
     }
 
     public List<? extends Entity> Filter(String filter, int page, int size, Object... params) {
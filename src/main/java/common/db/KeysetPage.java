@@ -0,0 +1,35 @@
+package common.db;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 基于主键游标（keyset）的分页结果
+ * next 为下一页的起始游标，传给 query_after/listAfter 即可获取下一页，为 0 表示已经没有更多数据
+ *
+ * @param <T>
+ */
+public class KeysetPage<T> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<T> items;
+    private final long next;
+
+    public KeysetPage(List<T> items, long next) {
+        this.items = items;
+        this.next = next;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public long getNext() {
+        return next;
+    }
+
+    public boolean hasNext() {
+        return next > 0;
+    }
+}
@@ -0,0 +1,185 @@
+package common.db;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CacheMgr 的本地近端缓存，一个实例对应一个缓存区域
+ * 直接保存对象引用，命中时不经过 J2Cache 的 CacheObject 包装。
+ * 容量满时按 TinyLFU 的方式准入：轮流抽样若干条目选出访问频率最低的作为候选淘汰者，
+ * 新条目的访问频率更高时才替换，否则不写入，避免偶发访问的键把热点键挤出。
+ * 条目在 TTL 到期后失效；其它节点上的修改通过 NearCacheClusterPolicy 广播清除，未使用该广播方式时最多延迟一个 TTL 可见。
+ */
+final class NearCache {
+
+    private final static int SAMPLE_SIZE = 8;
+
+    private final String region;
+    private final int maxSize;
+    private final long ttl;     //纳秒
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final FrequencySketch sketch;
+    private Iterator<Map.Entry<String, Entry>> cursor;  //淘汰抽样的位置，由 victim() 加锁访问
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+
+    NearCache(String region, int maxSize, int ttlSeconds) {
+        this.region = region;
+        this.maxSize = maxSize;
+        this.ttl = ttlSeconds * 1000000000L;
+        this.entries = new ConcurrentHashMap<>(Math.min(maxSize, 1024));
+        this.sketch = new FrequencySketch(maxSize);
+    }
+
+    String region() {
+        return region;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    Object get(String key) {
+        sketch.increment(key.hashCode());
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (entry.expireAt - System.nanoTime() > 0) {
+                hits.increment();
+                return entry.value;
+            }
+            entries.remove(key, entry);
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(String key, Object value) {
+        if (value == null) {
+            entries.remove(key);
+            return;
+        }
+        Entry entry = new Entry(value, System.nanoTime() + ttl);
+        if (entries.size() < maxSize || entries.containsKey(key)) {
+            entries.put(key, entry);
+            return;
+        }
+        String victim = victim();
+        if (victim == null) {
+            entries.put(key, entry);
+        } else if (sketch.frequency(key.hashCode()) > sketch.frequency(victim.hashCode())) {
+            if (entries.remove(victim) != null) {
+                evictions.increment();
+            }
+            entries.put(key, entry);
+        }
+    }
+
+    void remove(String key) {
+        entries.remove(key);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 抽样选出访问频率最低的条目，抽样中遇到过期条目时直接清除并返回 null（已腾出空间）
+     * 抽样从上次停下的位置继续，遍历到末尾后从头开始，使每个条目都有机会被淘汰。
+     */
+    private String victim() {
+        String victim = null;
+        int min = Integer.MAX_VALUE;
+        long now = System.nanoTime();
+        synchronized (this) {
+            for (int i = 0; i < SAMPLE_SIZE; i++) {
+                if (cursor == null || !cursor.hasNext()) {
+                    cursor = entries.entrySet().iterator();
+                    if (!cursor.hasNext())
+                        break;
+                }
+                Map.Entry<String, Entry> e = cursor.next();
+                if (e.getValue().expireAt - now <= 0) {
+                    entries.remove(e.getKey(), e.getValue());
+                    return null;
+                }
+                int freq = sketch.frequency(e.getKey().hashCode());
+                if (freq < min) {
+                    min = freq;
+                    victim = e.getKey();
+                }
+            }
+        }
+        return victim;
+    }
+
+    private final static class Entry {
+        final Object value;
+        final long expireAt;
+
+        Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 访问频率估计（Count-Min Sketch，4 组哈希，计数上限 15）
+     * 累计访问次数达到容量的 10 倍时所有计数减半，使频率随时间衰减。
+     * 计数器的并发更新不加锁，偶尔丢失的计数不影响准入判断。
+     */
+    private final static class FrequencySketch {
+
+        private final static int[] SEEDS = {0x97cb3127, 0xb7f4e4c5, 0x5bd1e995, 0x2f7f3a6b};
+        private final static int MAX_COUNT = 15;
+
+        private final int[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maxSize) {
+            int width = Integer.highestOneBit(Math.max(maxSize, 16) * 4 - 1) << 1;
+            this.table = new int[width];
+            this.mask = width - 1;
+            this.sampleSize = Math.max(maxSize, 16) * 10;
+        }
+
+        int frequency(int hash) {
+            int freq = MAX_COUNT;
+            for (int seed : SEEDS) {
+                freq = Math.min(freq, table[index(hash, seed)]);
+            }
+            return freq;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int seed : SEEDS) {
+                int idx = index(hash, seed);
+                if (table[idx] < MAX_COUNT) {
+                    table[idx]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private int index(int hash, int seed) {
+            int h = (hash ^ seed) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void reset() {
+            additions = 0;
+            for (int i = 0; i < table.length; i++) {
+                table[i] >>>= 1;
+            }
+        }
+    }
+}
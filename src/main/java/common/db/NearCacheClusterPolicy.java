@@ -0,0 +1,36 @@
+package common.db;
+
+import net.oschina.j2cache.redis.RedisPubSubClusterPolicy;
+
+import java.util.Properties;
+
+/**
+ * 在 Redis 广播的基础上同步清除近端缓存
+ * 其它节点广播的 evict/clear 命令除清除一级缓存外，同时清除 CacheMgr 对应区域的近端缓存。
+ * J2Cache 通过无参构造函数创建自定义的广播策略，连接参数沿用 j2cache.properties 中 redis 的配置，
+ * 由 CacheMgr 在初始化 J2Cache 之前设置，配置了 near.* 且 j2cache.broadcast = redis 时自动启用。
+ */
+public class NearCacheClusterPolicy extends RedisPubSubClusterPolicy {
+
+    private static volatile Properties broadcastProperties = new Properties();
+
+    public NearCacheClusterPolicy() {
+        super(broadcastProperties.getProperty("channel"), broadcastProperties);
+    }
+
+    static void init(Properties props) {
+        broadcastProperties = props;
+    }
+
+    @Override
+    public void evict(String region, String... keys) {
+        super.evict(region, keys);
+        CacheMgr.evictNear(region, keys);
+    }
+
+    @Override
+    public void clear(String region) {
+        super.clear(region);
+        CacheMgr.clearNear(region);
+    }
+}
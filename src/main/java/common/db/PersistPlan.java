@@ -0,0 +1,300 @@
+package common.db;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 实体类的持久化计划
+ * 每个实体类第一次写库时生成一次，包含可写入的字段、字段的读取句柄以及 INSERT/UPDATE 语句，
+ * 之后的 save/doUpdate 只需读取字段值并绑定参数。
+ * 与 listInsertableFields 的规则一致：值为 null 的字段不写入，id 为 0 时不写入 id，
+ * 因此 SQL 按表名及实际写入的字段组合缓存；表名每次从对象取得，子类可以按对象返回不同的表（例如分表）。
+ */
+final class PersistPlan {
+
+    private final static MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private final static MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private final static ConcurrentHashMap<Class<?>, PersistPlan> plans = new ConcurrentHashMap<>();
+    private final static PersistPlan NONE = new PersistPlan();
+
+    private final String[] fields;
+    private final MethodHandle[] getters;
+    private final int idIndex;
+    private final ConcurrentHashMap<String, ConcurrentHashMap<BitSet, String>> insertSQLs = new ConcurrentHashMap<>();   //表名 -> 字段组合 -> SQL
+    private final ConcurrentHashMap<String, ConcurrentHashMap<BitSet, String>> updateSQLs = new ConcurrentHashMap<>();
+
+    private PersistPlan() {
+        this.fields = null;
+        this.getters = null;
+        this.idIndex = -1;
+    }
+
+    private PersistPlan(Entity obj) {
+        List<String> names = new ArrayList<>();
+        List<MethodHandle> handles = new ArrayList<>();
+        try {
+            for (PropertyDescriptor field : Introspector.getBeanInfo(obj.getClass()).getPropertyDescriptors()) {
+                Method reader = field.getReadMethod();
+                if ("class".equals(field.getName()) || reader == null) {
+                    continue;
+                }
+                if (!reader.isAccessible()) {
+                    reader.setAccessible(true);
+                }
+                names.add(field.getName());
+                handles.add(lookup.unreflect(reader).asType(GETTER_TYPE));
+            }
+        } catch (IntrospectionException | IllegalAccessException e) {
+            throw new RuntimeException("ListInsertableFields Failed", e);
+        }
+        this.fields = names.toArray(new String[names.size()]);
+        this.getters = handles.toArray(new MethodHandle[handles.size()]);
+        this.idIndex = names.indexOf("id");
+    }
+
+    /**
+     * 返回实体类对应的持久化计划，子类覆盖了 listInsertableFields 时返回 null
+     *
+     * @param obj
+     * @return
+     */
+    static PersistPlan of(Entity obj) {
+        PersistPlan plan = plans.get(obj.getClass());
+        if (plan == null) {
+            plan = plans.computeIfAbsent(obj.getClass(), cls -> overridesInsertableFields(cls) ? NONE : new PersistPlan(obj));
+        }
+        return (plan != NONE) ? plan : null;
+    }
+
+    private static boolean overridesInsertableFields(Class<?> cls) {
+        for (Class<?> c = cls; c != null && c != Entity.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("listInsertableFields");
+                return true;
+            } catch (NoSuchMethodException e) {
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 生成对象的 INSERT 语句及参数
+     *
+     * @param obj
+     * @return
+     */
+    static Insert insert(Entity obj) {
+        PersistPlan plan = of(obj);
+        if (plan != null) {
+            Object[] values = plan.values(obj);
+            return new Insert(plan.insertSQL(obj.rawTableName(), values), plan.insertParams(values));
+        }
+        Map<String, Object> pojo_bean = obj.listInsertableFields();
+        if (obj.getId() > 0) {
+            pojo_bean.put("id", obj.getId());
+        }
+        String[] fields = pojo_bean.keySet().stream().toArray(String[]::new);
+        Object[] params = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            params[i] = pojo_bean.get(fields[i]);
+        }
+        return new Insert(buildInsertSQL(obj.rawTableName(), fields), params);
+    }
+
+    int size() {
+        return fields.length;
+    }
+
+    String field(int i) {
+        return fields[i];
+    }
+
+    /**
+     * 读取对象各字段的值，不需要写入的字段（null 值，以及 id 为 0 时的 id）返回 null
+     *
+     * @param obj
+     * @return
+     */
+    Object[] values(Entity obj) {
+        Object[] values = new Object[fields.length];
+        boolean skipId = obj.getId() == 0;
+        try {
+            for (int i = 0; i < getters.length; i++) {
+                if (i == idIndex && skipId) {
+                    continue;
+                }
+                values[i] = (Object) getters[i].invokeExact((Object) obj);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("ListInsertableFields Failed", t);
+        }
+        return values;
+    }
+
+    /**
+     * 返回与字段值对应的 INSERT 语句
+     *
+     * @param table  rawTableName
+     * @param values
+     * @return
+     */
+    String insertSQL(String table, Object[] values) {
+        BitSet mask = mask(values, -1);
+        ConcurrentHashMap<BitSet, String> sqls = insertSQLs.computeIfAbsent(table, t -> new ConcurrentHashMap<>());
+        String sql = sqls.get(mask);
+        if (sql == null) {
+            sql = sqls.computeIfAbsent(mask, m -> buildInsertSQL(table, names(m)));
+        }
+        return sql;
+    }
+
+    /**
+     * 返回与字段值对应的 UPDATE 语句，语句最后一个参数为 id
+     *
+     * @param table  tableName
+     * @param values
+     * @return
+     */
+    String updateSQL(String table, Object[] values) {
+        BitSet mask = mask(values, idIndex);
+        ConcurrentHashMap<BitSet, String> sqls = updateSQLs.computeIfAbsent(table, t -> new ConcurrentHashMap<>());
+        String sql = sqls.get(mask);
+        if (sql == null) {
+            sql = sqls.computeIfAbsent(mask, m -> buildUpdateSQL(table, names(m)));
+        }
+        return sql;
+    }
+
+    /**
+     * INSERT 语句的参数
+     *
+     * @param values
+     * @return
+     */
+    Object[] insertParams(Object[] values) {
+        return compact(values, -1, null);
+    }
+
+    /**
+     * UPDATE 语句的参数，最后附加 id
+     *
+     * @param values
+     * @param id
+     * @return
+     */
+    Object[] updateParams(Object[] values, long id) {
+        return compact(values, idIndex, id);
+    }
+
+    private static BitSet mask(Object[] values, int exclude) {
+        BitSet mask = new BitSet(values.length);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && i != exclude) {
+                mask.set(i);
+            }
+        }
+        return mask;
+    }
+
+    private static Object[] compact(Object[] values, int exclude, Object tail) {
+        int count = (tail != null) ? 1 : 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && i != exclude) {
+                count++;
+            }
+        }
+        Object[] params = new Object[count];
+        int idx = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && i != exclude) {
+                params[idx++] = values[i];
+            }
+        }
+        if (tail != null) {
+            params[idx] = tail;
+        }
+        return params;
+    }
+
+    private String[] names(BitSet mask) {
+        String[] names = new String[mask.cardinality()];
+        int idx = 0;
+        for (int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1)) {
+            names[idx++] = fields[i];
+        }
+        return names;
+    }
+
+    /**
+     * 生成 INSERT 语句
+     *
+     * @param table
+     * @param fields
+     * @return
+     */
+    static String buildInsertSQL(String table, String[] fields) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ");
+        sql.append(table);
+        //双引号导致  形如 INSERT INTO osc_blogs("origin_url","abstracts","catalog","project", 语法异常，此处使用反单引号
+        sql.append("(`");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sql.append("`,`");
+            }
+            sql.append(fields[i]);
+        }
+        sql.append("`) VALUES(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+            }
+            sql.append('?');
+        }
+        sql.append(')');
+        return sql.toString();
+    }
+
+    /**
+     * 生成根据 id 更新的 UPDATE 语句
+     *
+     * @param table
+     * @param fields
+     * @return
+     */
+    static String buildUpdateSQL(String table, String[] fields) {
+        StringBuilder sql = new StringBuilder("update ").append(table).append(" set ");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+            }
+            sql.append('`').append(fields[i]).append("`=?");
+        }
+        sql.append(" where id=?");
+        return sql.toString();
+    }
+
+    /**
+     * 一条待执行的 INSERT 语句
+     */
+    final static class Insert {
+        final String sql;
+        final Object[] params;
+
+        Insert(String sql, Object[] params) {
+            this.sql = sql;
+            this.params = params;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package common.db;
+
+import net.oschina.j2cache.CacheObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 自动查询缓存
+ * 缓存键由 SQL、参数以及查询涉及的每张表的版本号组成，表的版本号保存在缓存中，
+ * 对表执行写操作后更新版本号，之前缓存的查询结果不再被命中，等待过期即可，无需逐个清除。
+ * 事务中的写操作在最外层事务提交后才更新版本号，回滚则不更新。
+ */
+final class QueryCache {
+
+    final static String REGION = "query";                  //查询结果
+    final static String VERSION_REGION = "query_version";  //表版本号
+
+    private final static int MAX_SQLS = 5000;
+    private final static int MAX_KEY_LENGTH = 200;
+    private final static Pattern TABLE = Pattern.compile("\\b(?:from|join|update|into)\\s+([`\"\\w.]+)", Pattern.CASE_INSENSITIVE);
+    //FROM a x, b y 形式的后续表名
+    private final static Pattern NEXT_TABLE = Pattern.compile("\\G(?:\\s+(?:as\\s+)?(?!(?:where|join|left|right|inner|outer|cross|on|group|order|limit|having|union|set|values)\\b)\\w+)?\\s*,\\s*([`\"\\w.]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final static ConcurrentHashMap<String, String[]> tables = new ConcurrentHashMap<>();
+    private final static ThreadLocal<Set<String>> pending = new ThreadLocal<>();  //事务中待更新版本号的表
+
+    private QueryCache() {
+    }
+
+    /**
+     * 生成查询的缓存键
+     *
+     * @param database
+     * @param tag      区分返回类型，例如 Bean 类名
+     * @param sql
+     * @param params
+     * @return
+     */
+    static String key(String database, String tag, String sql, Object[] params) {
+        StringBuilder key = new StringBuilder(sql.length() + 64);
+        key.append(database).append('|').append(tag).append('|');
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space) {
+                    key.append(' ');
+                    space = false;
+                }
+                key.append(c);
+            }
+        }
+        key.append('|');
+        if (params != null) {
+            for (Object param : params) {
+                if (param instanceof java.util.Date) {
+                    key.append(((java.util.Date) param).getTime());
+                } else if (param instanceof Object[]) {
+                    key.append(Arrays.deepToString((Object[]) param));
+                } else {
+                    key.append(param);
+                }
+                key.append(',');
+            }
+        }
+        key.append('|').append(versions(database, tables(sql)));
+        return (key.length() > MAX_KEY_LENGTH) ? tag + '#' + sha1(key.toString()) : key.toString();
+    }
+
+    /**
+     * 返回 SQL 涉及的表名（去掉 schema 及引号，小写）
+     *
+     * @param sql
+     * @return
+     */
+    static String[] tables(String sql) {
+        String[] names = tables.get(sql);
+        if (names == null) {
+            Set<String> found = new LinkedHashSet<>();
+            Matcher m = TABLE.matcher(sql);
+            int from = 0;
+            while (from < sql.length() && m.find(from)) {
+                found.add(normalize(m.group(1)));
+                Matcher next = NEXT_TABLE.matcher(sql);
+                int end = m.end();
+                while (next.find(end) && next.start() == end) {
+                    found.add(normalize(next.group(1)));
+                    end = next.end();
+                }
+                from = end;
+            }
+            names = found.toArray(new String[found.size()]);
+            if (tables.size() < MAX_SQLS) {
+                tables.putIfAbsent(sql, names);
+            }
+        }
+        return names;
+    }
+
+    private static String normalize(String table) {
+        int idx = table.lastIndexOf('.');
+        String name = (idx >= 0) ? table.substring(idx + 1) : table;
+        return name.replace("`", "").replace("\"", "").toLowerCase();
+    }
+
+    /**
+     * 读取各表的当前版本号，没有版本号的表生成一个新的版本号
+     */
+    private static String versions(String database, String[] names) {
+        if (names.length == 0) {
+            return "";
+        }
+        List<String> keys = new ArrayList<>(names.length);
+        for (String name : names) {
+            keys.add(database + ':' + name);
+        }
+        Map<String, CacheObject> cached = CacheMgr.get(VERSION_REGION, keys);
+        StringBuilder versions = new StringBuilder();
+        for (String key : keys) {
+            CacheObject obj = (cached != null) ? cached.get(key) : null;
+            Object version = (obj != null) ? obj.getValue() : null;
+            if (version == null) {
+                //版本号过期后不能回到旧值，否则旧的缓存结果会重新生效
+                version = ThreadLocalRandom.current().nextLong();
+                CacheMgr.set(VERSION_REGION, key, version);
+            }
+            versions.append(version).append(',');
+        }
+        return versions.toString();
+    }
+
+    /**
+     * 更新表的版本号，事务中推迟到提交后执行
+     *
+     * @param database
+     * @param inTransaction
+     * @param names
+     */
+    static void touch(String database, boolean inTransaction, String... names) {
+        if (inTransaction) {
+            Set<String> keys = pending.get();
+            if (keys == null) {
+                keys = new HashSet<>();
+                pending.set(keys);
+            }
+            for (String name : names) {
+                keys.add(database + ':' + normalize(name));
+            }
+            return;
+        }
+        for (String name : names) {
+            CacheMgr.set(VERSION_REGION, database + ':' + normalize(name), ThreadLocalRandom.current().nextLong());
+        }
+    }
+
+    /**
+     * 事务提交后更新事务中写过的表的版本号
+     */
+    static void commit() {
+        Set<String> keys = pending.get();
+        pending.remove();
+        if (keys != null) {
+            keys.forEach(key -> CacheMgr.set(VERSION_REGION, key, ThreadLocalRandom.current().nextLong()));
+        }
+    }
+
+    /**
+     * 事务回滚，丢弃待更新的版本号
+     */
+    static void rollback() {
+        pending.remove();
+    }
+
+    private static String sha1(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new DBException(e);
+        }
+    }
+}
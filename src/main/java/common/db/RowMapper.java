@@ -0,0 +1,332 @@
+package common.db;
+
+import org.apache.commons.dbutils.ResultSetHandler;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 结果集到 Bean 对象的映射器
+ * 每个类只做一次属性扫描，再按结果集的列布局（列名签名）生成映射器并缓存，
+ * 映射时通过 MethodHandle 直接调用 setter，不再逐行反射查找属性。
+ * 列名与属性名的匹配以及类型转换规则与 commons-dbutils 的 BeanProcessor 保持一致。
+ */
+final class RowMapper<T> {
+
+    private final static MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private final static MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private final static ConcurrentHashMap<Class<?>, BeanMeta<?>> metas = new ConcurrentHashMap<>();
+
+    private final BeanMeta<T> meta;
+    private final int[] indexes;        //结果集中需要映射的列序号
+    private final Setter[] setters;     //与 indexes 一一对应的属性 setter
+
+    private RowMapper(BeanMeta<T> meta, int[] indexes, Setter[] setters) {
+        this.meta = meta;
+        this.indexes = indexes;
+        this.setters = setters;
+    }
+
+    /**
+     * 返回将结果集转成对象列表的处理器
+     *
+     * @param beanClass
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    static <T> ResultSetHandler<List<T>> listHandler(Class<T> beanClass) {
+        return ((BeanMeta<T>) meta(beanClass)).listHandler;
+    }
+
+    /**
+     * 返回将结果集首行转成对象的处理器
+     *
+     * @param beanClass
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    static <T> ResultSetHandler<T> beanHandler(Class<T> beanClass) {
+        return ((BeanMeta<T>) meta(beanClass)).beanHandler;
+    }
+
+    /**
+     * 获取与当前结果集列布局对应的映射器
+     *
+     * @param beanClass
+     * @param rs
+     * @return
+     * @throws SQLException
+     */
+    @SuppressWarnings("unchecked")
+    static <T> RowMapper<T> of(Class<T> beanClass, ResultSet rs) throws SQLException {
+        return ((BeanMeta<T>) meta(beanClass)).mapper(rs.getMetaData());
+    }
+
+    private static BeanMeta<?> meta(Class<?> beanClass) {
+        BeanMeta<?> meta = metas.get(beanClass);
+        if (meta == null) {
+            meta = metas.computeIfAbsent(beanClass, BeanMeta::new);
+        }
+        return meta;
+    }
+
+    /**
+     * 将结果集当前行转成对象
+     *
+     * @param rs
+     * @return
+     * @throws SQLException
+     */
+    T toBean(ResultSet rs) throws SQLException {
+        T bean = meta.newInstance();
+        for (int i = 0; i < indexes.length; i++) {
+            setters[i].apply(bean, rs, indexes[i]);
+        }
+        return bean;
+    }
+
+    /**
+     * 某个类的属性信息及其所有列布局的映射器
+     */
+    private final static class BeanMeta<T> {
+
+        private final Class<T> beanClass;
+        private final MethodHandle constructor;
+        private final Map<String, Setter> setters = new HashMap<>();   //小写属性名 -> setter
+        private final ConcurrentHashMap<String, RowMapper<T>> mappers = new ConcurrentHashMap<>();
+
+        private final ResultSetHandler<List<T>> listHandler = rs -> {
+            List<T> beans = new ArrayList<>();
+            if (rs.next()) {
+                RowMapper<T> mapper = mapper(rs.getMetaData());
+                do {
+                    beans.add(mapper.toBean(rs));
+                } while (rs.next());
+            }
+            return beans;
+        };
+
+        private final ResultSetHandler<T> beanHandler = rs -> rs.next() ? mapper(rs.getMetaData()).toBean(rs) : null;
+
+        BeanMeta(Class<T> beanClass) {
+            this.beanClass = beanClass;
+            try {
+                this.constructor = lookup.findConstructor(beanClass, MethodType.methodType(void.class))
+                        .asType(MethodType.methodType(Object.class));
+                for (PropertyDescriptor prop : Introspector.getBeanInfo(beanClass).getPropertyDescriptors()) {
+                    Method writer = prop.getWriteMethod();
+                    if (writer == null) {
+                        continue;
+                    }
+                    if (!writer.isAccessible()) {
+                        writer.setAccessible(true);
+                    }
+                    setters.putIfAbsent(prop.getName().toLowerCase(),
+                            new Setter(prop.getName(), writer.getParameterTypes()[0], lookup.unreflect(writer).asType(SETTER_TYPE)));
+                }
+            } catch (IntrospectionException | NoSuchMethodException | IllegalAccessException e) {
+                throw new DBException("Failed to build row mapper of " + beanClass.getName(), e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        T newInstance() throws SQLException {
+            try {
+                Object bean = (Object) constructor.invokeExact();
+                return (T) bean;
+            } catch (Throwable t) {
+                throw new SQLException("Cannot create " + beanClass.getName() + ": " + t.getMessage(), t);
+            }
+        }
+
+        RowMapper<T> mapper(ResultSetMetaData rsmd) throws SQLException {
+            int cols = rsmd.getColumnCount();
+            String[] labels = new String[cols];
+            StringBuilder signature = new StringBuilder(cols * 12);
+            for (int col = 1; col <= cols; col++) {
+                String label = rsmd.getColumnLabel(col);
+                if (label == null || label.length() == 0) {
+                    label = rsmd.getColumnName(col);
+                }
+                labels[col - 1] = label;
+                signature.append(label).append(',');
+            }
+            String key = signature.toString();
+            RowMapper<T> mapper = mappers.get(key);
+            if (mapper == null) {
+                mapper = mappers.computeIfAbsent(key, k -> compile(labels));
+            }
+            return mapper;
+        }
+
+        private RowMapper<T> compile(String[] labels) {
+            List<Integer> indexes = new ArrayList<>();
+            List<Setter> matched = new ArrayList<>();
+            for (int i = 0; i < labels.length; i++) {
+                Setter setter = (labels[i] != null) ? setters.get(labels[i].toLowerCase()) : null;
+                if (setter != null) {
+                    indexes.add(i + 1);
+                    matched.add(setter);
+                }
+            }
+            return new RowMapper<>(this, indexes.stream().mapToInt(Integer::intValue).toArray(), matched.toArray(new Setter[matched.size()]));
+        }
+    }
+
+    /**
+     * 属性 setter，负责按属性类型从结果集中读取列值并写入对象
+     */
+    private final static class Setter {
+
+        private final static int OBJECT = 0, STRING = 1, INT = 2, BOOLEAN = 3, LONG = 4, DOUBLE = 5,
+                FLOAT = 6, SHORT = 7, BYTE = 8, TIMESTAMP = 9, SQLXML_TYPE = 10;
+
+        private final String name;
+        private final Class<?> type;
+        private final Class<?> boxedType;
+        private final boolean primitive;
+        private final int reader;
+        private final MethodHandle handle;
+
+        Setter(String name, Class<?> type, MethodHandle handle) {
+            this.name = name;
+            this.type = type;
+            this.primitive = type.isPrimitive();
+            this.boxedType = primitive ? MethodType.methodType(type).wrap().returnType() : type;
+            this.reader = reader(boxedType);
+            this.handle = handle;
+        }
+
+        private static int reader(Class<?> type) {
+            if (type == String.class) return STRING;
+            if (type == Integer.class) return INT;
+            if (type == Boolean.class) return BOOLEAN;
+            if (type == Long.class) return LONG;
+            if (type == Double.class) return DOUBLE;
+            if (type == Float.class) return FLOAT;
+            if (type == Short.class) return SHORT;
+            if (type == Byte.class) return BYTE;
+            if (type == Timestamp.class) return TIMESTAMP;
+            if (type == SQLXML.class) return SQLXML_TYPE;
+            return OBJECT;
+        }
+
+        void apply(Object bean, ResultSet rs, int index) throws SQLException {
+            Object value = read(rs, index);
+            if (value == null) {
+                if (primitive) {
+                    value = primitiveDefault(type);
+                    if (value == null) {
+                        return;
+                    }
+                }
+            } else if (!boxedType.isInstance(value)) {
+                value = convert(value);
+            }
+            try {
+                handle.invokeExact(bean, value);
+            } catch (SQLException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new SQLException("Cannot set " + name + ": " + t.getMessage(), t);
+            }
+        }
+
+        private Object read(ResultSet rs, int index) throws SQLException {
+            Object value;
+            switch (reader) {
+                case STRING:
+                    return rs.getString(index);
+                case INT:
+                    value = rs.getInt(index);
+                    break;
+                case BOOLEAN:
+                    value = rs.getBoolean(index);
+                    break;
+                case LONG:
+                    value = rs.getLong(index);
+                    break;
+                case DOUBLE:
+                    value = rs.getDouble(index);
+                    break;
+                case FLOAT:
+                    value = rs.getFloat(index);
+                    break;
+                case SHORT:
+                    value = rs.getShort(index);
+                    break;
+                case BYTE:
+                    value = rs.getByte(index);
+                    break;
+                case TIMESTAMP:
+                    return rs.getTimestamp(index);
+                case SQLXML_TYPE:
+                    return rs.getSQLXML(index);
+                default:
+                    return rs.getObject(index);
+            }
+            //基本类型的属性即便列值为 NULL 也会写入默认值，与 BeanProcessor 一致
+            return (!primitive && rs.wasNull()) ? null : value;
+        }
+
+        /**
+         * 与 BeanProcessor 的 PropertyHandler 一致的类型转换
+         *
+         * @param value
+         * @return
+         * @throws SQLException
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Object convert(Object value) throws SQLException {
+            if (value instanceof java.util.Date) {
+                long time = ((java.util.Date) value).getTime();
+                if (type == java.sql.Date.class) {
+                    return new java.sql.Date(time);
+                }
+                if (type == Time.class) {
+                    return new Time(time);
+                }
+                if (type == Timestamp.class) {
+                    Timestamp ts = new Timestamp(time);
+                    if (value instanceof Timestamp) {
+                        ts.setNanos(((Timestamp) value).getNanos());
+                    }
+                    return ts;
+                }
+            }
+            if (value instanceof String && type.isEnum()) {
+                return Enum.valueOf((Class<? extends Enum>) type, (String) value);
+            }
+            throw new SQLException("Cannot set " + name + ": incompatible types, cannot convert "
+                    + value.getClass().getName() + " to " + type.getName());
+        }
+
+        private static Object primitiveDefault(Class<?> type) {
+            if (type == int.class) return 0;
+            if (type == long.class) return 0L;
+            if (type == short.class) return (short) 0;
+            if (type == byte.class) return (byte) 0;
+            if (type == float.class) return 0f;
+            if (type == double.class) return 0d;
+            if (type == boolean.class) return Boolean.FALSE;
+            if (type == char.class) return (char) 0;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package common.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * SQL 执行统计
+ * 按 SQL 指纹（字面量替换为 ?，IN 列表合并，空白归一）汇总执行次数、耗时分布、影响行数及错误次数，
+ * 计数器均为 LongAdder，记录时不加锁。超过 slow_sql 阈值的语句会记录到日志。
+ */
+public final class SQLStats {
+
+    private final static Logger log = LoggerFactory.getLogger(SQLStats.class);
+
+    private final static int MAX_SQLS = 10000;          //原始 SQL 到统计项的缓存上限
+    private final static int MAX_FINGERPRINTS = 2000;   //指纹数量上限，超出后归入 OTHERS
+    private final static int BUCKETS = 32;              //耗时直方图，第 n 个桶为 [2^(n-1), 2^n) 微秒
+    private final static String OTHERS = "<others>";
+    private final static Pattern IN_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+
+    private final static ConcurrentHashMap<String, Stat> bySQL = new ConcurrentHashMap<>();
+    private final static ConcurrentHashMap<String, Stat> byFingerprint = new ConcurrentHashMap<>();
+
+    private static volatile boolean show_sql = false;
+    private static volatile long slow_nanos = 1000 * 1000000L;
+
+    private SQLStats() {
+    }
+
+    /**
+     * 设置是否输出每条 SQL 以及慢查询阈值
+     *
+     * @param showSQL
+     * @param slowMillis 小于等于 0 时不记录慢查询
+     */
+    static void configure(boolean showSQL, long slowMillis) {
+        show_sql = showSQL;
+        slow_nanos = (slowMillis > 0) ? slowMillis * 1000000L : Long.MAX_VALUE;
+    }
+
+    /**
+     * 返回 SQL 对应的统计项
+     *
+     * @param sql
+     * @return
+     */
+    static Stat of(String sql) {
+        if (sql == null) {
+            sql = "";
+        }
+        Stat stat = bySQL.get(sql);
+        if (stat == null) {
+            String fp = fingerprint(sql);
+            stat = byFingerprint.get(fp);
+            if (stat == null) {
+                stat = (byFingerprint.size() < MAX_FINGERPRINTS)
+                        ? byFingerprint.computeIfAbsent(fp, Stat::new)
+                        : byFingerprint.computeIfAbsent(OTHERS, Stat::new);
+            }
+            if (bySQL.size() < MAX_SQLS) {
+                bySQL.putIfAbsent(sql, stat);
+            }
+        }
+        return stat;
+    }
+
+    /**
+     * 计算 SQL 指纹：字符串及数字字面量替换为 ?，连续空白合并为一个空格，(?, ?, ?) 合并为 (?+)
+     *
+     * @param sql
+     * @return
+     */
+    static String fingerprint(String sql) {
+        int len = sql.length();
+        StringBuilder fp = new StringBuilder(len);
+        boolean space = false;
+        for (int i = 0; i < len; i++) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && fp.length() > 0) {
+                fp.append(' ');
+            }
+            space = false;
+            if (c == '\'') {
+                int j = i + 1;
+                while (j < len) {
+                    char d = sql.charAt(j);
+                    if (d == '\\') {
+                        j += 2;
+                    } else if (d == '\'' && j + 1 < len && sql.charAt(j + 1) == '\'') {
+                        j += 2;
+                    } else if (d == '\'') {
+                        break;
+                    } else {
+                        j++;
+                    }
+                }
+                fp.append('?');
+                i = j;
+            } else if (Character.isDigit(c) && (fp.length() == 0 || !isIdentifierPart(fp.charAt(fp.length() - 1)))) {
+                int j = i + 1;
+                while (j < len && (Character.isLetterOrDigit(sql.charAt(j)) || sql.charAt(j) == '.')) {
+                    j++;
+                }
+                fp.append('?');
+                i = j - 1;
+            } else {
+                fp.append(c);
+            }
+        }
+        return IN_LIST.matcher(fp).replaceAll("(?+)");
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '`' || c == '"';
+    }
+
+    /**
+     * 返回当前的统计快照，按总耗时倒序
+     *
+     * @return
+     */
+    public static List<Snapshot> snapshot() {
+        List<Snapshot> snapshots = new ArrayList<>(byFingerprint.size());
+        byFingerprint.values().forEach(stat -> {
+            Snapshot snapshot = stat.snapshot();
+            if (snapshot.count > 0 || snapshot.errors > 0) {
+                snapshots.add(snapshot);
+            }
+        });
+        snapshots.sort((s1, s2) -> Double.compare(s2.totalMillis, s1.totalMillis));
+        return snapshots;
+    }
+
+    /**
+     * 清空所有计数
+     */
+    public static void reset() {
+        byFingerprint.values().forEach(Stat::reset);
+    }
+
+    /**
+     * 一个 SQL 指纹的计数器
+     */
+    final static class Stat {
+
+        private final String fingerprint;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+        private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+        Stat(String fingerprint) {
+            this.fingerprint = fingerprint;
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * 记录一次成功的执行
+         *
+         * @param sql     原始 SQL，用于日志
+         * @param elapsed 耗时（纳秒）
+         * @param rows    影响行数，查询语句的行数在结果集关闭时通过 rows 方法累加
+         */
+        void record(String sql, long elapsed, long rows) {
+            count.increment();
+            nanos.add(elapsed);
+            max.accumulate(elapsed);
+            int bucket = 64 - Long.numberOfLeadingZeros(elapsed / 1000);
+            histogram[(bucket < BUCKETS) ? bucket : BUCKETS - 1].increment();
+            if (rows > 0) {
+                this.rows.add(rows);
+            }
+            if (elapsed >= slow_nanos) {
+                log.warn("[SLOW SQL -> {}ms] >>> {}", elapsed / 1000000, sql);
+            } else if (show_sql) {
+                log.info("[SQL -> {}ms] >>> {}", elapsed / 1000000, sql);
+            }
+        }
+
+        /**
+         * 记录一次失败的执行
+         *
+         * @param sql
+         * @param elapsed
+         */
+        void failed(String sql, long elapsed) {
+            errors.increment();
+            if (show_sql || elapsed >= slow_nanos) {
+                log.warn("[SQL FAILED -> {}ms] >>> {}", elapsed / 1000000, sql);
+            }
+        }
+
+        void rows(long n) {
+            if (n > 0) {
+                rows.add(n);
+            }
+        }
+
+        void reset() {
+            count.reset();
+            errors.reset();
+            rows.reset();
+            nanos.reset();
+            max.reset();
+            for (LongAdder bucket : histogram) {
+                bucket.reset();
+            }
+        }
+
+        Snapshot snapshot() {
+            long[] buckets = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = histogram[i].sum();
+                total += buckets[i];
+            }
+            Snapshot snapshot = new Snapshot();
+            snapshot.sql = fingerprint;
+            snapshot.count = count.sum();
+            snapshot.errors = errors.sum();
+            snapshot.rows = rows.sum();
+            snapshot.totalMillis = nanos.sum() / 1000000d;
+            snapshot.maxMillis = max.get() / 1000000d;
+            snapshot.p50 = percentile(buckets, total, 0.50);
+            snapshot.p95 = percentile(buckets, total, 0.95);
+            snapshot.p99 = percentile(buckets, total, 0.99);
+            return snapshot;
+        }
+
+        /**
+         * 由直方图估算分位数，返回所在桶的上界（毫秒）
+         */
+        private static double percentile(long[] buckets, long total, double q) {
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * q);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return (1L << i) / 1000d;
+                }
+            }
+            return (1L << (buckets.length - 1)) / 1000d;
+        }
+    }
+
+    /**
+     * 某个 SQL 指纹的统计快照
+     */
+    public static class Snapshot {
+        private String sql;
+        private long count;
+        private long errors;
+        private long rows;
+        private double totalMillis;
+        private double maxMillis;
+        private double p50;
+        private double p95;
+        private double p99;
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public double getTotalMillis() {
+            return totalMillis;
+        }
+
+        public double getAvgMillis() {
+            return (count > 0) ? totalMillis / count : 0;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP95() {
+            return p95;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+    }
+}
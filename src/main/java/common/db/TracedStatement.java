@@ -0,0 +1,508 @@
+package common.db;
+
+import java.sql.*;
+
+/**
+ * 带执行统计的语句，每次执行的耗时、影响行数及错误记录到 SQLStats
+ */
+class TracedStatement<S extends Statement> implements Statement {
+
+    protected final TracedConnection connection;
+    protected final S delegate;
+    private final boolean prepared;
+    protected String batchSQL;                  //批处理统计使用的 SQL，预编译语句为其自身 SQL
+    protected SQLStats.Stat batchStat;
+    protected SQLStats.Stat last;               //最近一次执行的统计项，用于 getResultSet
+    private TracedResultSet current;
+
+    TracedStatement(TracedConnection connection, S delegate) {
+        this(connection, delegate, null);
+    }
+
+    TracedStatement(TracedConnection connection, S delegate, String sql) {
+        this.connection = connection;
+        this.delegate = delegate;
+        this.prepared = (sql != null);
+        if (prepared) {
+            this.batchSQL = sql;
+            this.batchStat = SQLStats.of(sql);
+        }
+    }
+
+    /**
+     * 包装查询结果集，结果集关闭时累加读取的行数
+     *
+     * @param rs
+     * @param stat
+     * @return
+     */
+    protected final ResultSet traced(ResultSet rs, SQLStats.Stat stat) {
+        if (rs == null) {
+            return null;
+        }
+        if (current != null) {
+            current.flush();
+        }
+        current = new TracedResultSet(this, rs, stat);
+        return current;
+    }
+
+    private void batchDone() {
+        if (!prepared) {
+            batchSQL = null;
+            batchStat = null;
+        }
+    }
+
+    protected static long sum(int[] counts) {
+        long total = 0;
+        for (int n : counts) {
+            if (n > 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    protected static long sum(long[] counts) {
+        long total = 0;
+        for (long n : counts) {
+            if (n > 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = delegate.executeQuery(sql);
+            stat.record(sql, System.nanoTime() - start, 0);
+            last = stat;
+            return traced(rs, stat);
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            int n = delegate.executeUpdate(sql);
+            stat.record(sql, System.nanoTime() - start, n);
+            last = stat;
+            return n;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (current != null) {
+            current.flush();
+        }
+        delegate.close();
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return delegate.getMaxFieldSize();
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        delegate.setMaxFieldSize(max);
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return delegate.getMaxRows();
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        delegate.setMaxRows(max);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        delegate.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return delegate.getQueryTimeout();
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        delegate.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        delegate.cancel();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        delegate.clearWarnings();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        delegate.setCursorName(name);
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            boolean result = delegate.execute(sql);
+            stat.record(sql, System.nanoTime() - start, 0);
+            last = stat;
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        ResultSet rs = delegate.getResultSet();
+        if (rs == null || last == null) {
+            return rs;
+        }
+        return (current != null && current.wraps(rs)) ? current : traced(rs, last);
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return delegate.getUpdateCount();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return delegate.getMoreResults();
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        delegate.setFetchDirection(direction);
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return delegate.getFetchDirection();
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        delegate.setFetchSize(rows);
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return delegate.getFetchSize();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return delegate.getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return delegate.getResultSetType();
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        if (batchStat == null) {
+            batchSQL = sql;
+            batchStat = SQLStats.of(sql);
+        }
+        delegate.addBatch(sql);
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        delegate.clearBatch();
+        batchDone();
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        if (batchStat == null) {
+            return delegate.executeBatch();
+        }
+        SQLStats.Stat stat = batchStat;
+        long start = System.nanoTime();
+        try {
+            int[] n = delegate.executeBatch();
+            stat.record(batchSQL, System.nanoTime() - start, sum(n));
+            last = stat;
+            return n;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(batchSQL, System.nanoTime() - start);
+            throw e;
+        } finally {
+            batchDone();
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        return delegate.getMoreResults(current);
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return delegate.getGeneratedKeys();
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            int n = delegate.executeUpdate(sql, autoGeneratedKeys);
+            stat.record(sql, System.nanoTime() - start, n);
+            last = stat;
+            return n;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            int n = delegate.executeUpdate(sql, columnIndexes);
+            stat.record(sql, System.nanoTime() - start, n);
+            last = stat;
+            return n;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            int n = delegate.executeUpdate(sql, columnNames);
+            stat.record(sql, System.nanoTime() - start, n);
+            last = stat;
+            return n;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            boolean result = delegate.execute(sql, autoGeneratedKeys);
+            stat.record(sql, System.nanoTime() - start, 0);
+            last = stat;
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            boolean result = delegate.execute(sql, columnIndexes);
+            stat.record(sql, System.nanoTime() - start, 0);
+            last = stat;
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            boolean result = delegate.execute(sql, columnNames);
+            stat.record(sql, System.nanoTime() - start, 0);
+            last = stat;
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return delegate.getResultSetHoldability();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        delegate.setPoolable(poolable);
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return delegate.isPoolable();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        delegate.closeOnCompletion();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return delegate.isCloseOnCompletion();
+    }
+
+    @Override
+    public long getLargeUpdateCount() throws SQLException {
+        return delegate.getLargeUpdateCount();
+    }
+
+    @Override
+    public void setLargeMaxRows(long max) throws SQLException {
+        delegate.setLargeMaxRows(max);
+    }
+
+    @Override
+    public long getLargeMaxRows() throws SQLException {
+        return delegate.getLargeMaxRows();
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        if (batchStat == null) {
+            return delegate.executeLargeBatch();
+        }
+        SQLStats.Stat stat = batchStat;
+        long start = System.nanoTime();
+        try {
+            long[] n = delegate.executeLargeBatch();
+            stat.record(batchSQL, System.nanoTime() - start, sum(n));
+            last = stat;
+            return n;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(batchSQL, System.nanoTime() - start);
+            throw e;
+        } finally {
+            batchDone();
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            long n = delegate.executeLargeUpdate(sql);
+            stat.record(sql, System.nanoTime() - start, n);
+            last = stat;
+            return n;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            long n = delegate.executeLargeUpdate(sql, autoGeneratedKeys);
+            stat.record(sql, System.nanoTime() - start, n);
+            last = stat;
+            return n;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            long n = delegate.executeLargeUpdate(sql, columnIndexes);
+            stat.record(sql, System.nanoTime() - start, n);
+            last = stat;
+            return n;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+        SQLStats.Stat stat = SQLStats.of(sql);
+        long start = System.nanoTime();
+        try {
+            long n = delegate.executeLargeUpdate(sql, columnNames);
+            stat.record(sql, System.nanoTime() - start, n);
+            last = stat;
+            return n;
+        } catch (SQLException | RuntimeException e) {
+            stat.failed(sql, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws java.sql.SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws java.sql.SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,147 @@
+package common.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import utils.LongIntMap;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 浏览数计数器
+ * 请求线程调用 increment 只在内存中累加，后台线程定时通过 Entity.UpdateViewCount 批量写库并更新缓存，
+ * 每个对象每个周期只产生一条批处理语句。应用关闭时调用 shutdown 写入剩余的计数。
+ */
+public class ViewCounter {
+
+    private final static Logger log = LoggerFactory.getLogger(ViewCounter.class);
+
+    private final static long DEAD = Long.MIN_VALUE;    //计数器已被取走，不能再累加
+
+    private final static ConcurrentHashMap<Class<? extends Entity>, ConcurrentHashMap<Long, AtomicLong>> counters = new ConcurrentHashMap<>();
+    private static volatile ScheduledExecutorService flusher;
+    private static volatile boolean stopped = false;    //shutdown 之后不再启动后台线程
+
+    private ViewCounter() {
+    }
+
+    /**
+     * 浏览数加一
+     *
+     * @param entityClass
+     * @param id
+     */
+    public static void increment(Class<? extends Entity> entityClass, long id) {
+        increment(entityClass, id, 1);
+    }
+
+    /**
+     * 累加浏览数，不阻塞调用线程
+     *
+     * @param entityClass
+     * @param id
+     * @param count
+     */
+    public static void increment(Class<? extends Entity> entityClass, long id, long count) {
+        if (count <= 0) {
+            return;
+        }
+        ConcurrentHashMap<Long, AtomicLong> ids = counters.get(entityClass);
+        if (ids == null) {
+            ids = counters.computeIfAbsent(entityClass, cls -> new ConcurrentHashMap<>());
+            start();
+        }
+        for (; ; ) {
+            AtomicLong counter = ids.get(id);
+            if (counter == null) {
+                counter = ids.computeIfAbsent(id, k -> new AtomicLong());
+            }
+            long value = counter.get();
+            if (value == DEAD) {
+                //计数器刚被 flush 取走，移除后使用新的计数器
+                ids.remove(id, counter);
+                continue;
+            }
+            if (counter.compareAndSet(value, value + count)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把所有累加的浏览数写入数据库
+     */
+    public static void flush() {
+        counters.forEach((entityClass, ids) -> {
+            LongIntMap datas = new LongIntMap(ids.size());
+            Iterator<Map.Entry<Long, AtomicLong>> it = ids.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, AtomicLong> entry = it.next();
+                long value = entry.getValue().getAndSet(DEAD);
+                ids.remove(entry.getKey(), entry.getValue());
+                if (value > 0) {
+                    datas.put(entry.getKey(), (int) Math.min(value, Integer.MAX_VALUE));
+                }
+            }
+            if (!datas.isEmpty()) {
+                try {
+                    entityClass.newInstance().UpdateViewCount(datas, true);
+                } catch (Exception e) {
+                    log.error("Failed to update view count of " + entityClass.getName(), e);
+                    //UpdateViewCount 只在写库失败时抛出异常，把计数放回，下一周期重试
+                    datas.forEach((id, count) -> increment(entityClass, id, count));
+                } finally {
+                    DBManager.closeConnection();
+                }
+            }
+        });
+    }
+
+    private static void start() {
+        if (flusher != null || stopped) {
+            return;
+        }
+        synchronized (ViewCounter.class) {
+            if (flusher == null && !stopped) {
+                int interval = DBManager.viewCountFlushInterval();
+                flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "ViewCounter-Flusher");
+                    t.setDaemon(true);
+                    return t;
+                });
+                flusher.scheduleWithFixedDelay(() -> {
+                    try {
+                        flush();
+                    } catch (Throwable t) {
+                        log.error("Failed to flush view counters", t);
+                    }
+                }, interval, interval, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * 停止后台线程并写入剩余的计数，之后累加的计数不再定时写入
+     */
+    public static void shutdown() {
+        synchronized (ViewCounter.class) {
+            stopped = true;
+            if (flusher != null) {
+                flusher.shutdown();
+                try {
+                    flusher.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                flusher = null;
+            }
+        }
+        flush();
+    }
+}
@@ -1,29 +1,62 @@
 package common.framework;
 
 import common.db.CacheMgr;
+import org.apache.velocity.VelocityContext;
 import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.context.InternalContextAdapterImpl;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.directive.Directive;
 import org.apache.velocity.runtime.parser.node.Node;
 import org.apache.velocity.runtime.parser.node.SimpleNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import utils.StringUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Velocity模板上用于控制缓存的指令
  * 该类必须在 velocity.properties 中配置 userdirective=common.framework.CacheDirective
+ * 用法：#cache(region, key [, ttl [, beta]]) ... #end
+ * 指定 ttl（秒）时按 XFetch 的方式提前刷新：越接近过期、渲染越慢，越早有一个请求被选中刷新，
+ * 被选中的请求仍然输出缓存中的内容，重新渲染推迟到页面输出完成之后（见 VelocityServlet），
+ * beta 越大越早刷新，默认 1.0；只有缓存中没有可用的内容时才在当前请求中渲染。
+ * Velocity 为模板中的每个 #cache 创建一个指令实例，模板内容的指纹在解析时计算一次。
+ * velocity.properties 中配置 directive.cache.bytes = true 时片段以 UTF-8 字节保存，
+ * 超过 directive.cache.deflate.threshold 字节的片段压缩保存，以减少二级缓存及近端缓存的占用；
+ * 响应未经压缩缓冲时，布局中的片段字节原样写入响应的输出流（见 VelocityServlet.mergeTemplate），
+ * 其余情况边解压边解码写入页面，不生成中间的字符串。
  */
 public class CacheDirective extends Directive {
 
     private final static Logger log = LoggerFactory.getLogger(CacheDirective.class);
 
     private final static Map<String, String> body_templates = new ConcurrentHashMap<>();
+    private final static Map<String, Boolean> refreshing = new ConcurrentHashMap<>();   //已安排刷新的片段
+    private final static ThreadLocal<List<Runnable>> pending = new ThreadLocal<>();     //当前请求结束后执行的刷新
+
+    private static volatile boolean bytes = false;              //以 UTF-8 字节保存片段
+    private static volatile int deflateThreshold = 4096;        //超过该字节数的片段压缩保存
+
+    private String fingerprint;     //本指令模板内容的指纹
 
     @Override
     public String getName() { return "cache"; }
@@ -31,6 +64,21 @@ public class CacheDirective extends Directive {
     @Override
     public int getType() { return Directive.BLOCK; }
 
+    @Override
+    public void init(RuntimeServices rs, InternalContextAdapter context, Node node) throws TemplateInitException {
+        super.init(rs, context, node);
+        bytes = rs.getBoolean("directive.cache.bytes", false);
+        deflateThreshold = rs.getInt("directive.cache.deflate.threshold", 4096);
+        fingerprint = fingerprint(node.jjtGetChild(node.jjtGetNumChildren() - 1).literal());
+    }
+
+    /**
+     * 片段是否以 UTF-8 字节保存
+     */
+    static boolean storeBytes() {
+        return bytes;
+    }
+
     /* (non-Javadoc)
      * @see Directive#render(InternalContextAdapter, java.io.Writer, Node)
      */
@@ -41,30 +89,217 @@ public class CacheDirective extends Directive {
         String region = sn_region.value(context).toString();
         SimpleNode sn_key = (SimpleNode) node.jjtGetChild(1);
         String key = sn_key.value(context).toString();
+        int args = node.jjtGetNumChildren() - 1;
+        int ttl = (args > 2) ? toNumber(node.jjtGetChild(2).value(context)).intValue() : 0;
+        double beta = (args > 3) ? toNumber(node.jjtGetChild(3).value(context)).doubleValue() : 1.0;
 
-        Node body = node.jjtGetChild(2);
-        //检查内容是否有变化
+        Node body = node.jjtGetChild(args);
+        //检查内容是否有变化，同一个解析后的模板指纹是同一个对象
         String tpl_key = key+"@"+region;
-        String body_tpl = body.literal();
-        String old_body_tpl = body_templates.get(tpl_key);
+        String old_fingerprint = body_templates.get(tpl_key);
 
-        if(!StringUtils.equals(body_tpl, old_body_tpl)) {
-            body_templates.put(tpl_key, body_tpl);
+        if(!fingerprint.equals(old_fingerprint)) {
+            body_templates.put(tpl_key, fingerprint);
             CacheMgr.evict(region, key);
         }
 
-        String cache_html = (String)CacheMgr.get(region, key, k -> {
-            StringWriter sw = new StringWriter();
+        if (ttl <= 0) {
+            Object cache_html = CacheMgr.get(region, key, k -> bytes ? renderFragment(context, body, region, key, 0) : renderBody(context, body, region, key));
+            if (cache_html instanceof Fragment) {
+                ((Fragment) cache_html).writeTo(writer);
+            } else {
+                writer.write((String) cache_html);
+            }
+            return true;
+        }
+
+        Object cached = CacheMgr.get(region, key);
+        Fragment fragment = (cached instanceof Fragment) ? (Fragment) cached : null;
+        long now = System.currentTimeMillis();
+        if (fragment == null || now >= fragment.expireAt) {
+            //没有可用的内容，只能在当前请求中渲染，并发的请求等待同一次渲染
+            fragment = (Fragment) CacheMgr.load(region, key, k -> renderFragment(context, body, region, key, ttl));
+        } else if (fragment.shouldRefresh(now, beta)) {
+            deferRefresh(context, body, region, key, ttl);
+        }
+        fragment.writeTo(writer);
+        return true;
+    }
+
+    /**
+     * 开始一个请求，此后提前刷新的片段在 endRequest 时渲染
+     */
+    static void beginRequest() {
+        pending.set(new ArrayList<>());
+    }
+
+    /**
+     * 本次请求是否有等待提前刷新的片段
+     */
+    static boolean hasPendingRefresh() {
+        List<Runnable> tasks = pending.get();
+        return tasks != null && !tasks.isEmpty();
+    }
+
+    /**
+     * 页面输出完成后调用，渲染本次请求中被选中提前刷新的片段
+     */
+    static void endRequest() {
+        List<Runnable> tasks = pending.get();
+        pending.remove();
+        if (tasks != null) {
+            tasks.forEach(Runnable::run);
+        }
+    }
+
+    private static void deferRefresh(InternalContextAdapter context, Node body, String region, String key, int ttl) {
+        List<Runnable> tasks = pending.get();
+        String tpl_key = key + "@" + region;
+        //不在 VelocityServlet 中渲染时无法推迟，等过期后再渲染
+        if (tasks == null || refreshing.putIfAbsent(tpl_key, Boolean.TRUE) != null) {
+            return;
+        }
+        //页面渲染结束后 #foreach 等指令的局部变量已经移除，先保存一份当前的变量
+        VelocityContext snapshot = new VelocityContext(context.getInternalUserContext());
+        for (Object name : context.getKeys()) {
+            snapshot.put(name.toString(), context.get(name.toString()));
+        }
+        String templateName = context.getCurrentTemplateName();
+        tasks.add(() -> {
             try {
-                body.render(context, sw);
-            } catch (IOException e) {
-                log.error(String.format("Failed to render velocity template (%s,%s).", region, key), e);
+                InternalContextAdapterImpl ica = new InternalContextAdapterImpl(snapshot);
+                ica.pushCurrentTemplateName(templateName);
+                CacheMgr.set(region, key, renderFragment(ica, body, region, key, ttl));
+            } catch (RuntimeException e) {
+                log.error(String.format("Failed to refresh velocity template (%s,%s).", region, key), e);
+            } finally {
+                refreshing.remove(tpl_key);
             }
-            return sw.toString();
         });
+    }
 
-        writer.write(cache_html);
-        return true;
+    private static Fragment renderFragment(InternalContextAdapter context, Node body, String region, String key, int ttl) {
+        long begin = System.nanoTime();
+        String html = renderBody(context, body, region, key);
+        long cost = Math.max((System.nanoTime() - begin) / 1000000, 1);
+        long expireAt = (ttl > 0) ? System.currentTimeMillis() + ttl * 1000L : Long.MAX_VALUE;
+        return bytes ? new Fragment(html.getBytes(StandardCharsets.UTF_8), deflateThreshold, expireAt, cost)
+                : new Fragment(html, expireAt, cost);
+    }
+
+    private static String renderBody(InternalContextAdapter context, Node body, String region, String key) {
+        StringWriter sw = new StringWriter();
+        try {
+            body.render(context, sw);
+        } catch (IOException e) {
+            log.error(String.format("Failed to render velocity template (%s,%s).", region, key), e);
+        }
+        return sw.toString();
+    }
+
+    private static String fingerprint(String body_tpl) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(body_tpl.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Number toNumber(Object value) {
+        return (value instanceof Number) ? (Number) value : Double.valueOf(String.valueOf(value));
+    }
+
+    /**
+     * 带过期时间的缓存片段，过期时间由指令控制，缓存区域本身的过期时间应大于 ttl
+     * 以字节保存时对象上只有 UTF-8 字节，不保留解码后的内容。
+     */
+    final static class Fragment implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        private final String text;      //未启用字节保存时的内容
+        private final byte[] data;      //UTF-8 编码的内容
+        private final boolean deflated; //data 是否已压缩
+        final long expireAt;    //毫秒
+        final long cost;        //渲染耗时，毫秒
+
+        Fragment(String html, long expireAt, long cost) {
+            this.text = html;
+            this.data = null;
+            this.deflated = false;
+            this.expireAt = expireAt;
+            this.cost = cost;
+        }
+
+        Fragment(byte[] utf8, int deflateThreshold, long expireAt, long cost) {
+            this.text = null;
+            this.deflated = utf8.length > deflateThreshold;
+            this.data = deflated ? deflate(utf8) : utf8;
+            this.expireAt = expireAt;
+            this.cost = cost;
+        }
+
+        /**
+         * 输出片段内容，直接写入响应输出流时不解码，否则压缩保存的字节边解压边解码
+         */
+        void writeTo(Writer writer) throws IOException {
+            if (text != null) {
+                writer.write(text);
+                return;
+            }
+            if (writer instanceof VelocityServlet.ResponseWriter) {
+                VelocityServlet.ResponseWriter out = (VelocityServlet.ResponseWriter) writer;
+                if (!deflated) {
+                    out.writeUtf8(data, 0, data.length);
+                    return;
+                }
+                try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(data))) {
+                    byte[] buf = new byte[4096];
+                    for (int n; (n = in.read(buf)) != -1; ) {
+                        out.writeUtf8(buf, 0, n);
+                    }
+                }
+                return;
+            }
+            InputStream in = new ByteArrayInputStream(data);
+            if (deflated) {
+                in = new InflaterInputStream(in);
+            }
+            try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+                char[] buf = new char[4096];
+                for (int n; (n = reader.read(buf)) != -1; ) {
+                    writer.write(buf, 0, n);
+                }
+            }
+        }
+
+        /**
+         * XFetch：now - cost * beta * ln(rand) >= expireAt 时提前刷新
+         */
+        boolean shouldRefresh(long now, double beta) {
+            double rand = 1.0 - ThreadLocalRandom.current().nextDouble();   //(0, 1]
+            return now - cost * beta * Math.log(rand) >= expireAt;
+        }
+
+        private static byte[] deflate(byte[] input) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(input);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 3 + 16);
+                byte[] buf = new byte[4096];
+                while (!deflater.finished()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
     }
 
 }
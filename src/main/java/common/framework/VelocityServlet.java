@@ -3,6 +3,8 @@ package common.framework;
 import com.googlecode.htmlcompressor.compressor.HtmlCompressor;
 import config.OnlyOneFilter;
 import org.apache.commons.collections.ExtendedProperties;
+import org.apache.velocity.Template;
+import org.apache.velocity.context.Context;
 import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ResourceNotFoundException;
 import org.apache.velocity.tools.view.servlet.ServletToolboxManager;
@@ -16,20 +18,31 @@ import javax.servlet.descriptor.JspConfigDescriptor;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
  * 自定义velocity的错误处理以及压缩内容输出
+ * 初始化后登记为共享实例，OnlyOneFilter 通过 render 直接渲染模板，无需 RequestDispatcher.forward
  */
 public final class VelocityServlet extends VelocityLayoutServlet {
 
     private final static Logger LOG = LoggerFactory.getLogger(VelocityServlet.class);
+    private final static String TEMPLATE_ATTR = "$OOF_TEMPLATE$";
+    private final static String PARAMS_ATTR = "$OOF_TEMPLATE_PARAMS$";
+
+    private static volatile VelocityServlet instance;
+
     private boolean compress = false;
     private boolean output_execute_time = false;
 
@@ -38,6 +51,99 @@ public final class VelocityServlet extends VelocityLayoutServlet {
         super.init(config);
         this.compress = "true".equalsIgnoreCase(config.getInitParameter("compress"));
         this.output_execute_time = "true".equalsIgnoreCase(config.getInitParameter("output-execute-time"));
+        instance = this;
+    }
+
+    @Override
+    public void destroy() {
+        if (instance == this) {
+            instance = null;
+        }
+        super.destroy();
+    }
+
+    /**
+     * 直接渲染模板，params 依次作为模板变量 p1,p2...
+     *
+     * @param req
+     * @param res
+     * @param template 模板路径，例如 /WEB-INF/templates/index.vm
+     * @param params
+     * @return 尚未初始化时返回 false，由调用方改用 forward
+     * @throws ServletException
+     * @throws IOException
+     */
+    public static boolean render(HttpServletRequest req, HttpServletResponse res, String template, String... params) throws ServletException, IOException {
+        VelocityServlet servlet = instance;
+        if (servlet == null) {
+            return false;
+        }
+        req.setAttribute(TEMPLATE_ATTR, template);
+        req.setAttribute(PARAMS_ATTR, params);
+        try {
+            servlet.doRequest(req, res);
+        } finally {
+            req.removeAttribute(TEMPLATE_ATTR);
+            req.removeAttribute(PARAMS_ATTR);
+        }
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    protected Template handleRequest(HttpServletRequest req, HttpServletResponse res, Context ctx) throws Exception {
+        String template = (String) req.getAttribute(TEMPLATE_ATTR);
+        if (template == null) {
+            return super.handleRequest(req, res, ctx);
+        }
+        String[] params = (String[]) req.getAttribute(PARAMS_ATTR);
+        if (params != null) {
+            for (int i = 0; i < params.length; i++) {
+                ctx.put("p" + (i + 1), params[i]);
+            }
+        }
+        //与 VelocityLayoutServlet.handleRequest 相同，处理页面指定的布局
+        fillContext(ctx, req);
+        return getTemplate(template);
+    }
+
+    /**
+     * 缓存片段以 UTF-8 字节保存且响应未经压缩缓冲时，布局通过 ResponseWriter 直接写入响应的输出流，
+     * 片段的字节原样输出，不再解码成字符后重新编码；页面内容（$screen_content）仍按字符渲染。
+     * 其余情况与 VelocityLayoutServlet.mergeTemplate 相同。
+     */
+    @Override
+    protected void mergeTemplate(Template template, Context ctx, HttpServletResponse res) throws Exception {
+        if (!CacheDirective.storeBytes() || res instanceof BufferedResponse
+                || !StandardCharsets.UTF_8.name().equalsIgnoreCase(res.getCharacterEncoding())) {
+            super.mergeTemplate(template, ctx, res);
+            return;
+        }
+        //与 VelocityLayoutServlet.mergeTemplate 相同，先渲染页面内容，再渲染布局
+        StringWriter screen = new StringWriter();
+        template.merge(ctx, screen);
+        ctx.put(KEY_SCREEN_CONTENT, screen.toString());
+        Object layout = ctx.get(KEY_LAYOUT);
+        String name = (layout == null) ? defaultLayout : layoutDir + layout;
+        Template page;
+        try {
+            page = getTemplate(name);
+        } catch (Exception e) {
+            LOG.error("Can't load layout \"" + name + "\"", e);
+            if (name.equals(defaultLayout)) {
+                throw e;
+            }
+            page = getTemplate(defaultLayout);
+        }
+        Writer writer;
+        try {
+            writer = new ResponseWriter(res.getOutputStream());
+        } catch (IllegalStateException e) {
+            //已经通过 getWriter 输出过内容
+            writer = getResponseWriter(res);
+        }
+        page.merge(ctx, writer);
+        writer.flush();
     }
 
     @Override
@@ -109,32 +215,117 @@ public final class VelocityServlet extends VelocityLayoutServlet {
 
     @Override
     protected void doRequest(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
-        long beginTime = System.currentTimeMillis();
+        CacheDirective.beginRequest();
+        boolean completed = false;
+        try {
+            long beginTime = System.currentTimeMillis();
+
+            if (this.compress && req.getAttribute("disableCompress") == null) {
+                BufferedResponse bres = new BufferedResponse(res);
+                super.doRequest(req, bres);
+                try {
+                    res.getWriter().print(compressor.compress(bres.html()));
+                } catch (EvaluatorException e) {
+                    res.getWriter().print(bres.html());
+                }
+            } else {
+                super.doRequest(req, res);
+            }
 
-        if (this.compress && req.getAttribute("disableCompress") == null) {
-            BufferedResponse bres = new BufferedResponse(res);
-            super.doRequest(req, bres);
-            try {
-                res.getWriter().print(compressor.compress(bres.html()));
-            } catch (EvaluatorException e) {
-                res.getWriter().print(bres.html());
+            if (res.getStatus() == HttpServletResponse.SC_OK) {
+                if (!"false".equalsIgnoreCase((String) req.getAttribute("debug")) && this.output_execute_time) {
+                    OnlyOneFilter.RequestContext ctx = OnlyOneFilter.RequestContext.get();
+                    Date cur_time = Calendar.getInstance(req.getLocale()).getTime();
+                    print(res, String.format("\r\n<!-- Generated by oschina (init:%s[ms],page:%s[ms],ip:%s) //-->",
+                            beginTime - ctx.getBeginTime(),
+                            cur_time.getTime() - beginTime,
+                            ctx.ip()));
+                }
+            }
+            res.flushBuffer();
+            completed = true;
+        } finally {
+            if (completed && CacheDirective.hasPendingRefresh()) {
+                //flushBuffer 不会结束分块或 keep-alive 的响应，先关闭输出，客户端不必等待下面的渲染
+                closeResponse(res);
             }
-        } else {
-            super.doRequest(req, res);
+            //页面已经输出给用户，再渲染需要提前刷新的缓存片段
+            CacheDirective.endRequest();
         }
+    }
 
-        if (res.getStatus() == HttpServletResponse.SC_OK) {
-            if (!"false".equalsIgnoreCase((String) req.getAttribute("debug")) && this.output_execute_time) {
-                OnlyOneFilter.RequestContext ctx = OnlyOneFilter.RequestContext.get();
-                Date cur_time = Calendar.getInstance(req.getLocale()).getTime();
-                PrintWriter pw = res.getWriter();
-                pw.printf("\r\n<!-- Generated by oschina (init:%s[ms],page:%s[ms],ip:%s) //-->",
-                        beginTime - ctx.getBeginTime(),
-                        cur_time.getTime() - beginTime,
-                        ctx.ip());
+    /**
+     * 追加输出，页面已经通过 ResponseWriter 写入输出流时改为写入输出流
+     */
+    private static void print(HttpServletResponse res, String text) throws IOException {
+        try {
+            res.getWriter().print(text);
+        } catch (IllegalStateException e) {
+            res.getOutputStream().write(text.getBytes(res.getCharacterEncoding()));
+        }
+    }
+
+    private static void closeResponse(HttpServletResponse res) {
+        try {
+            res.getWriter().close();
+        } catch (IllegalStateException e) {
+            //页面通过 getOutputStream 输出
+            try {
+                res.getOutputStream().close();
+            } catch (IOException | IllegalStateException ex) {
             }
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * 以 UTF-8 写入响应输出流的 Writer，CacheDirective 的片段通过 writeUtf8 直接写入字节
+     */
+    final static class ResponseWriter extends Writer {
+
+        private final OutputStream out;
+        private final Writer chars;
+
+        ResponseWriter(OutputStream out) {
+            this.out = out;
+            //编码后的字节交给 out，flush 时不刷新响应，避免每个片段产生一次网络输出
+            this.chars = new OutputStreamWriter(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() {
+                }
+            }, StandardCharsets.UTF_8);
+        }
+
+        void writeUtf8(byte[] b, int off, int len) throws IOException {
+            chars.flush();
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            chars.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            chars.write(str, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            chars.flush();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
         }
-        res.flushBuffer();
     }
 
     static class BufferedResponse extends HttpServletResponseWrapper {
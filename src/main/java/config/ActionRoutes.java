@@ -0,0 +1,216 @@
+package config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Action 路由表
+ * init 时扫描 action-path 包下所有 XxxAction 类，每个类只创建一个实例，
+ * 其公开方法预先绑定为统一签名 (RequestContext, String[]) -> Object 的 MethodHandle，
+ * 请求分发只需两次哈希查找，找不到的类和方法不再抛出并吞掉异常。
+ * 扫描不到该包时（例如类不在文件系统或 jar 中）退回按需加载，结果同样缓存。
+ */
+final class ActionRoutes {
+
+    private final static Logger log = LoggerFactory.getLogger(ActionRoutes.class);
+
+    private final static String ACTION_SUFFIX = "Action";
+    private final static int MAX_MISSES = 10000;    //按需加载时最多缓存的不存在的类名
+    private final static MethodType ROUTE_TYPE = MethodType.methodType(Object.class, OnlyOneFilter.RequestContext.class, String[].class);
+    private final static Map<String, Route> MISSING = Collections.emptyMap();
+
+    private final String packageName;
+    private final ConcurrentHashMap<String, Map<String, Route>> classes = new ConcurrentHashMap<>();    //类名 -> 方法名 -> 路由
+    private boolean scanned = false;    //扫描成功后路由表是完整的，表中没有的类即不存在
+
+    ActionRoutes(String packageName) {
+        this.packageName = packageName;
+        try {
+            scan();
+        } catch (IOException e) {
+            log.warn("Failed to scan actions in " + packageName + ", fall back to lazy loading", e);
+        }
+    }
+
+    /**
+     * 查找 action 方法
+     *
+     * @param cls    类名，例如 UserAction
+     * @param method 方法名
+     * @return 不存在时返回 null
+     */
+    Route route(String cls, String method) {
+        Map<String, Route> methods = classes.get(cls);
+        if (methods == null) {
+            if (scanned) {
+                return null;
+            }
+            methods = load(cls);
+            if (methods != MISSING || classes.size() < MAX_MISSES) {
+                classes.putIfAbsent(cls, methods);
+            }
+        }
+        return methods.get(method);
+    }
+
+    private void scan() throws IOException {
+        if (packageName == null) {
+            return;
+        }
+        String path = packageName.replace('.', '/');
+        ClassLoader loader = classLoader();
+        Enumeration<URL> urls = loader.getResources(path);
+        boolean found = false;
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            if ("file".equals(url.getProtocol())) {
+                File[] files = new File(URLDecoder.decode(url.getFile(), "UTF-8")).listFiles();
+                if (files != null) {
+                    found = true;
+                    for (File file : files) {
+                        register(file.getName());
+                    }
+                }
+            } else if ("jar".equals(url.getProtocol())) {
+                JarURLConnection conn = (JarURLConnection) url.openConnection();
+                conn.setUseCaches(false);
+                try (JarFile jar = conn.getJarFile()) {
+                    found = true;
+                    Enumeration<JarEntry> entries = jar.entries();
+                    while (entries.hasMoreElements()) {
+                        String name = entries.nextElement().getName();
+                        int idx = name.lastIndexOf('/');
+                        if (idx == path.length() && name.startsWith(path)) {
+                            register(name.substring(idx + 1));
+                        }
+                    }
+                }
+            }
+        }
+        scanned = found;
+        log.info(String.format("%d actions found in %s", classes.size(), packageName));
+    }
+
+    private void register(String fileName) {
+        if (fileName.endsWith(ACTION_SUFFIX + ".class") && fileName.indexOf('$') < 0) {
+            String cls = fileName.substring(0, fileName.length() - ".class".length());
+            Map<String, Route> methods = load(cls);
+            if (methods != MISSING) {
+                classes.put(cls, methods);
+            }
+        }
+    }
+
+    /**
+     * 加载 action 类，创建唯一的实例并绑定其公开方法
+     */
+    private Map<String, Route> load(String cls) {
+        Class<?> actionClass;
+        try {
+            actionClass = Class.forName(packageName + "." + cls, true, classLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            return MISSING;
+        }
+        if (!Modifier.isPublic(actionClass.getModifiers())) {
+            return MISSING;
+        }
+        Object instance = null;
+        Throwable error = null;
+        try {
+            instance = actionClass.newInstance();
+        } catch (IllegalAccessException e) {
+            return MISSING;
+        } catch (Throwable t) {
+            error = t;
+        }
+        //不允许action方法重名，重名时与 getDeclaredMethods 的顺序一致取第一个
+        Map<String, Route> methods = new HashMap<>();
+        for (Method m : actionClass.getDeclaredMethods()) {
+            if (Modifier.isPublic(m.getModifiers()) && !methods.containsKey(m.getName())) {
+                methods.put(m.getName(), new Route(actionClass.getName(), m, instance, error));
+            }
+        }
+        return methods;
+    }
+
+    private static ClassLoader classLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return (loader != null) ? loader : ActionRoutes.class.getClassLoader();
+    }
+
+    /**
+     * 预先绑定的 action 方法
+     */
+    final static class Route {
+        final String name;
+        final int httpMethod;           //OnlyOneFilter.HttpMethod
+        final int role;                 //UserRoleRequired 要求的角色，没有要求时为 -1
+        final boolean returnBoolean;
+        final boolean returnVoid;
+        final Throwable error;          //无法调用的原因
+        private final MethodHandle handle;
+
+        Route(String cls, Method m, Object instance, Throwable instanceError) {
+            this.name = cls + "." + m.getName();
+            OnlyOneFilter.HttpMethod http = m.getAnnotation(OnlyOneFilter.HttpMethod.class);
+            this.httpMethod = (http != null) ? http.value() : OnlyOneFilter.HttpMethod.ALL;
+            OnlyOneFilter.UserRoleRequired role = m.getAnnotation(OnlyOneFilter.UserRoleRequired.class);
+            this.role = (role != null) ? role.role() : -1;
+            this.returnBoolean = m.getReturnType().equals(boolean.class);
+            this.returnVoid = m.getReturnType().equals(void.class);
+            boolean isStatic = Modifier.isStatic(m.getModifiers());
+            MethodHandle mh = null;
+            Throwable err = null;
+            if (!isStatic && instance == null) {
+                err = instanceError;
+            } else {
+                try {
+                    mh = MethodHandles.publicLookup().unreflect(m);
+                    if (!isStatic) {
+                        mh = mh.bindTo(instance);
+                    }
+                    switch (m.getParameterCount()) {
+                        case 0:
+                            mh = MethodHandles.dropArguments(mh, 0, OnlyOneFilter.RequestContext.class, String[].class);
+                            break;
+                        case 1:
+                            mh = MethodHandles.dropArguments(mh, 1, String[].class);
+                            break;
+                        case 2:
+                            break;
+                        default:
+                            throw new IllegalArgumentException(cls + "（" + m.getName() + ")");//无效的action方法定义
+                    }
+                    mh = mh.asType(ROUTE_TYPE);
+                } catch (IllegalAccessException | RuntimeException e) {
+                    mh = null;
+                    err = (e instanceof IllegalArgumentException) ? e : new IllegalArgumentException(cls + "（" + m.getName() + ")", e);
+                }
+            }
+            this.handle = mh;
+            this.error = err;
+        }
+
+        Object invoke(OnlyOneFilter.RequestContext ctx, String[] args) throws Throwable {
+            return (Object) handle.invokeExact(ctx, args);
+        }
+    }
+}
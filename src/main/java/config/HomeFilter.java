@@ -2,7 +2,6 @@ package config;
 
 
 import beans.User;
-import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import utils.StringUtils;
@@ -15,11 +14,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * 全局过滤器
@@ -85,43 +81,28 @@ public class HomeFilter extends OSChinaUserFilter {
 
 
         String req_uri = request.getRequestURI();
-        getRequestURL(request);
-        //过滤URL前缀
-        for (String ignoreURI : super.ignoreURIs) {
-            if (req_uri.startsWith(ignoreURI)) {
-                chain.doFilter(req, res);
-                return;
-            }
-        }
-        //过滤URL后缀
-        for (String ignoreExt : super.ignoreExts) {
-            if (req_uri.endsWith(ignoreExt)) {
-                chain.doFilter(req, res);
-                return;
-            }
+        //过滤URL前缀和后缀
+        if (isIgnored(req, req_uri)) {
+            chain.doFilter(req, res);
+            return;
         }
+        getRequestURL(request);
 
         //重定向 带有个性域名的url
-        String[] uris;
+        PathSegments uris = PathSegments.of(request, req_uri);
         User user = null;
-        uris = Stream.of(request.getRequestURI().split("/")).filter(p -> p.length() > 0).toArray(String[]::new);
 
-        if (uris.length >= 1) {
-            if (uris.length > 1 && uris[0].equals("u")) {
+        if (uris.size() >= 1) {
+            if (uris.size() > 1 && uris.get(0).equals("u")) {
                 try {
-                    user = User.ME.get(new Long(uris[1]));
+                    user = User.ME.get(new Long(uris.get(1)));
                     if (user == null || user.getStatus() != 1) {
                         response.sendError(404);
                         return;
                     } else {
                         if (StringUtils.isNotBlank(user.getIdent())) {
-                            String[] buildurl;
-                            buildurl = ArrayUtils.remove(uris, 0);
-                            buildurl = ArrayUtils.remove(buildurl, 0);
-                            ArrayUtils.reverse(buildurl);
-                            buildurl = ArrayUtils.add(buildurl, user.getIdent());
-                            ArrayUtils.reverse(buildurl);
-                            response.sendRedirect("/" + Arrays.stream(buildurl).collect(Collectors.joining("/")));
+                            String rest = uris.join(2, uris.size());
+                            response.sendRedirect("/" + user.getIdent() + (rest.length() > 0 ? "/" + rest : ""));
                             return;
                         }
                     }
@@ -145,7 +126,7 @@ public class HomeFilter extends OSChinaUserFilter {
             }
         }
 
-        super.doFilter(new HomeRequest(request), response, chain);
+        super.doFilter(new HomeRequest(request, uris), response, chain);
     }
 
     public String getContextURL(HttpServletRequest request) {
@@ -180,23 +161,17 @@ public class HomeFilter extends OSChinaUserFilter {
      * 个人空间 URL 的第一位是个性地址，该封装类就是为了处理这个个性地址
      */
     private static class HomeRequest extends HttpServletRequestWrapper {
-        private String[] uris;
+        private final String uri;
         private final static Logger log = LoggerFactory.getLogger(HomeRequest.class);
         private User user;
 
-        public HomeRequest(HttpServletRequest request) {
+        public HomeRequest(HttpServletRequest request, PathSegments uris) {
             super(request);
 
-            try {
-                this.uris = Stream.of(request.getRequestURI().split("/")).filter(p -> p.length() > 0).toArray(String[]::new);
-            } catch (Exception e) {
-                log.error(e.getMessage());
-            }
-
-            if (uris.length >= 1) {
-                if (uris.length > 1 && uris[0].equals("u")) {
+            if (uris.size() >= 1) {
+                if (uris.size() > 1 && uris.get(0).equals("u")) {
                     try {
-                        user = User.ME.get(new Long(uris[1]));
+                        user = User.ME.get(new Long(uris.get(1)));
                         if (user != null) {
                             request.setAttribute("currentSpaceUser", user);
                         }
@@ -210,34 +185,30 @@ public class HomeFilter extends OSChinaUserFilter {
                     }
                 }
             }
+            this.uri = rewrite(request, uris);
         }
 
-        @Override
-        public String getRequestURI() {
-            if (uris.length == 0) {
+        /**
+         * 去掉个性地址后的 URI，对应的分段共享给 OnlyOneFilter
+         */
+        private static String rewrite(HttpServletRequest request, PathSegments uris) {
+            if (uris.size() == 0) {
                 return "/";
             }
 
             //ie 浏览器提示
-            if ("ie_compatibility".equals(uris[0])) {
+            if ("ie_compatibility".equals(uris.get(0))) {
                 return "/ie_compatibility";
             }
 
-            if ("u".equals(uris[0])) {
-                try {
-                    return Arrays.stream(uris).skip(2).collect(Collectors.joining("/"));
-                } catch (Exception e) {
-                    log.error(e.getMessage());
-                }
-                return null;
-            } else {
-                try {
-                    return Arrays.stream(uris).skip(1).collect(Collectors.joining("/"));
-                } catch (Exception e) {
-                    log.error(e.getMessage());
-                }
-                return null;
-            }
+            PathSegments rest = uris.slice("u".equals(uris.get(0)) ? 2 : 1);
+            rest.share(request);
+            return rest.path();
+        }
+
+        @Override
+        public String getRequestURI() {
+            return uri;
         }
     }
 
@@ -0,0 +1,98 @@
+package config;
+
+import javax.servlet.ServletRequest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 不予处理的 URL 匹配器，在过滤器 init 时根据 ignore 和 ignore_exts 构建
+ * URL 前缀使用字典树匹配，扩展名使用哈希表匹配；
+ * 判断结果保存在请求属性中，同一请求经过多个过滤器时同一个 URI 只判断一次。
+ */
+final class IgnoreMatcher {
+
+    private final static String ATTR_NAME = "$OOF_IGNORE$";
+
+    private final Node prefixes = new Node();
+    private final Set<String> exts = new HashSet<>();
+    private final boolean empty;
+
+    IgnoreMatcher(Collection<String> prefixes, Collection<String> exts) {
+        for (String prefix : prefixes) {
+            Node node = this.prefixes;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+            }
+            node.terminal = true;
+        }
+        this.exts.addAll(exts);
+        this.empty = prefixes.isEmpty() && exts.isEmpty();
+    }
+
+    /**
+     * 判断请求的 URI 是否不予处理
+     *
+     * @param req
+     * @param uri
+     * @return
+     */
+    boolean ignored(ServletRequest req, String uri) {
+        if (empty) {
+            return false;
+        }
+        Object decision = req.getAttribute(ATTR_NAME);
+        if (decision instanceof Decision && ((Decision) decision).uri.equals(uri)) {
+            return ((Decision) decision).ignored;
+        }
+        boolean ignored = matches(uri);
+        req.setAttribute(ATTR_NAME, new Decision(uri, ignored));
+        return ignored;
+    }
+
+    boolean matches(String uri) {
+        Node node = prefixes;
+        for (int i = 0; ; i++) {
+            if (node.terminal) {
+                return true;
+            }
+            if (i == uri.length()) {
+                break;
+            }
+            node = node.children.get(uri.charAt(i));
+            if (node == null) {
+                break;
+            }
+        }
+        if (!exts.isEmpty()) {
+            //扩展名可能包含多个点，例如 .min.js
+            for (int i = uri.length() - 1; i >= 0; i--) {
+                char c = uri.charAt(i);
+                if (c == '/') {
+                    break;
+                }
+                if (c == '.' && exts.contains(uri.substring(i))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private final static class Node {
+        final Map<Character, Node> children = new HashMap<>(4);
+        boolean terminal;
+    }
+
+    private final static class Decision {
+        final String uri;
+        final boolean ignored;
+
+        Decision(String uri, boolean ignored) {
+            this.uri = uri;
+            this.ignored = ignored;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package config;
 import beans.User;
 import common.db.CacheMgr;
 import common.db.DBManager;
+import common.db.ViewCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,6 +25,7 @@ public class OSChinaUserFilter extends OnlyOneFilter {
 	 */
 	@Override
 	protected boolean beforeFilter(RequestContext ctx) throws IllegalAccessException, IOException {
+		CacheMgr.beginRequest();
 		User user = ctx.validUser();
 		if (user != null && !user.IsBlocked()) {
 			ctx.attr(RequestContext.TOKEN_LOGIN_USER, user);
@@ -32,7 +34,7 @@ public class OSChinaUserFilter extends OnlyOneFilter {
 	}
 
 	/**
-	 * 请求结束释放数据库连接
+	 * 请求结束释放数据库连接以及请求内缓存
 	 *
 	 * @param ctx
 	 * @throws IOException
@@ -40,10 +42,13 @@ public class OSChinaUserFilter extends OnlyOneFilter {
 	@Override
 	protected void finalFilter(RequestContext ctx) throws IllegalAccessException, IOException {
 		DBManager.closeConnection();
+		CacheMgr.endRequest();
 	}
 
 	@Override
 	public void destroy() {
+		ViewCounter.shutdown();
+		log.warn("View counters flushed!!!");
 		CacheMgr.close();
 		log.warn("Cache Manager closed!!!");
 		DBManager.close();
@@ -5,6 +5,7 @@ import com.google.gson.Gson;
 import com.oreilly.servlet.MultipartRequest;
 import common.constant.ApiResult;
 import common.framework.FormatTool;
+import common.framework.VelocityServlet;
 import exception.ActionException;
 import org.apache.commons.beanutils.BeanUtils;
 import org.apache.commons.beanutils.ConvertUtils;
@@ -24,14 +25,12 @@ import java.io.*;
 import java.lang.annotation.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 /**
  * 此过滤器负责对编码进行自动处理，以及执行URL映射规则
@@ -57,9 +56,12 @@ public class OnlyOneFilter implements Filter {
     private ServletContext context;
     private String action_path;
     private String template_path;
+    private ActionRoutes routes;
+    private TemplateResolver templates;
 
     protected List<String> ignoreURIs = new ArrayList<>();
     protected List<String> ignoreExts = new ArrayList<>();
+    private IgnoreMatcher ignoreMatcher;
 
 
     //请求白名单，这些不需要判断 UA、IP 等，直接放行
@@ -96,6 +98,8 @@ public class OnlyOneFilter implements Filter {
         //模板存放路径
         this.action_path = cfg.getInitParameter("action-path");
         this.template_path = cfg.getInitParameter("template-path");
+        this.routes = new ActionRoutes(this.action_path);
+        this.templates = new TemplateResolver(this.context, this.template_path, "true".equalsIgnoreCase(cfg.getInitParameter("template-watch")));
 
         //某些URL前缀不予处理（例如 /img/***）
         String ignores = cfg.getInitParameter("ignore");
@@ -112,6 +116,7 @@ public class OnlyOneFilter implements Filter {
                 ignoreExts.add('.' + ig.trim());
             }
         }
+        this.ignoreMatcher = new IgnoreMatcher(ignoreURIs, ignoreExts);
 
 
         //初始化 action 加载
@@ -144,25 +149,16 @@ public class OnlyOneFilter implements Filter {
 
             String req_uri = rc.uri();
 
-            //过滤URL前缀
-            for (String ignoreURI : ignoreURIs) {
-                if (req_uri.startsWith(ignoreURI)) {
-                    chain.doFilter(rc.request(), rc.response());
-                    return;
-                }
-            }
-            //过滤URL后缀
-            for (String ignoreExt : ignoreExts) {
-                if (req_uri.endsWith(ignoreExt)) {
-                    chain.doFilter(rc.request(), rc.response());
-                    return;
-                }
+            //过滤URL前缀和后缀
+            if (isIgnored(rc.request(), req_uri)) {
+                chain.doFilter(rc.request(), rc.response());
+                return;
             }
 
             debug(rc.request.getMethod() + " " + req_uri + "\n");
 
             rc.attr(REQUEST_URI, req_uri);
-            String[] paths = parseUri(req_uri);
+            PathSegments paths = PathSegments.of(rc.request(), req_uri);
 
             //开始处理请求
             if (beforeFilter(rc)) {
@@ -238,8 +234,15 @@ public class OnlyOneFilter implements Filter {
         return true;
     }
 
-    private String[] parseUri(String uri) {
-        return Stream.of(uri.split("/")).filter(p -> p.length() > 0).toArray(String[]::new);
+    /**
+     * 判断 URI 是否在不予处理的前缀或扩展名中
+     *
+     * @param req
+     * @param uri
+     * @return
+     */
+    protected boolean isIgnored(ServletRequest req, String uri) {
+        return ignoreMatcher.ignored(req, uri);
     }
 
     /**
@@ -261,6 +264,9 @@ public class OnlyOneFilter implements Filter {
 
     @Override
     public void destroy() {
+        if (templates != null) {
+            templates.close();
+        }
         for (Object action : INITIAL_ACTIONS.values()) {
             try {
                 Method destoryMethod = action.getClass().getMethod("destroy");
@@ -280,25 +286,25 @@ public class OnlyOneFilter implements Filter {
      *
      * @return 返回调用Action方法的结果
      */
-    private boolean callAction(RequestContext ctx, String[] paths) throws ServletException {
+    private boolean callAction(RequestContext ctx, PathSegments paths) throws ServletException {
         boolean[] results;
-        String[] emptyParams = new String[0];
-        switch (paths.length) {
+        PathSegments emptyParams = paths.slice(paths.size());
+        switch (paths.size()) {
             case 0:
                 return invokeMethod(ctx, DEFAULT_CLASS, DEFAULT_METHOD, emptyParams)[1];
             case 1:
-                results = invokeMethod(ctx, paths[0], DEFAULT_METHOD, emptyParams);
+                results = invokeMethod(ctx, paths.get(0), DEFAULT_METHOD, emptyParams);
                 if (!results[0]) {
-                    return invokeMethod(ctx, DEFAULT_CLASS, paths[0], emptyParams)[1];
+                    return invokeMethod(ctx, DEFAULT_CLASS, paths.get(0), emptyParams)[1];
                 }
                 return results[1];
             default:
-                results = invokeMethod(ctx, paths[0], paths[1], shiftParams(paths, 2));
+                results = invokeMethod(ctx, paths.get(0), paths.get(1), paths.slice(2));
                 if (!results[0]) {
-                    String[] sparams = shiftParams(paths, 1);
-                    results = invokeMethod(ctx, paths[0], DEFAULT_METHOD, sparams);
+                    PathSegments sparams = paths.slice(1);
+                    results = invokeMethod(ctx, paths.get(0), DEFAULT_METHOD, sparams);
                     if (!results[0]) {
-                        return invokeMethod(ctx, DEFAULT_CLASS, paths[0], sparams)[1];
+                        return invokeMethod(ctx, DEFAULT_CLASS, paths.get(0), sparams)[1];
                     }
                 }
                 return results[1];
@@ -311,196 +317,153 @@ public class OnlyOneFilter implements Filter {
      * @param ctx
      * @param cls
      * @param method
-     * @param args
+     * @param args   方法参数，只在方法存在时才转换为数组
      * @return 返回两个boolean，第一个是是否调用了方法，第二个是action方法的返回值(true -> 继续执行模板，false -> 请求结束，不再执行模板）
      */
-    private boolean[] invokeMethod(RequestContext ctx, String cls, String method, String[] args) throws ServletException {
+    private boolean[] invokeMethod(RequestContext ctx, String cls, String method, PathSegments args) throws ServletException {
 
         cls = Character.toUpperCase(cls.charAt(0)) + cls.substring(1) + "Action";
 
         debug("Trying invoke method [%s.%s]\n", cls, method);
 
-        String cls_name = this.action_path + "." + cls;
-        try {
-            Object action = Class.forName(cls_name).newInstance();
-            //检查方法注解
-            Method m = getActionMethod(action.getClass(), method);//.getMethod(method, RequestContext.class, String[].class);
-            if (m != null) {
-                HttpMethod httpMethod = m.getAnnotation(HttpMethod.class);
-                if (httpMethod != null) {
-                    switch (httpMethod.value()) {
-                        case HttpMethod.POST:
-                            if (!"POST".equalsIgnoreCase(ctx.request.getMethod())) {
-                                return new boolean[]{false, true};//方法不匹配不执行，而不是抛出异常
-                            }
-                            break;
-                        case HttpMethod.GET:
-                            if (!"GET".equalsIgnoreCase(ctx.request.getMethod())) {
-                                return new boolean[]{false, true};//方法不匹配不执行，而不是抛出异常
-                            }
-                            break;
-                    }
-                }
-                Object res;
-                switch (m.getParameterCount()) {
-                    case 0:
-                        res = Modifier.isStatic(m.getModifiers()) ? m.invoke(action.getClass()) : m.invoke(action);
-                        break;
-                    case 1:
-                        res = Modifier.isStatic(m.getModifiers()) ? m.invoke(action.getClass(), ctx) : m.invoke(action, ctx);
-                        break;
-                    case 2:
-                        res = Modifier.isStatic(m.getModifiers()) ? m.invoke(action.getClass(), ctx, args) : m.invoke(action, ctx, args);
-                        break;
-                    default:
-                        throw new IllegalArgumentException(cls_name + "（" + method + ")");//无效的action方法定义
+        ActionRoutes.Route route = routes.route(cls, method);
+        if (route == null) {
+            return new boolean[]{false, true};
+        }
+        switch (route.httpMethod) {
+            case HttpMethod.POST:
+                if (!"POST".equalsIgnoreCase(ctx.request.getMethod())) {
+                    return new boolean[]{false, true};//方法不匹配不执行，而不是抛出异常
                 }
-                if (m.getReturnType().equals(boolean.class)) {
-                    return new boolean[]{true, (Boolean) res};
-                } else if (m.getReturnType().equals(void.class)) {
-                    return new boolean[]{true, false};
-                } else {
-                    ctx.output(res);
-                    return new boolean[]{true, false};
+                break;
+            case HttpMethod.GET:
+                if (!"GET".equalsIgnoreCase(ctx.request.getMethod())) {
+                    return new boolean[]{false, true};//方法不匹配不执行，而不是抛出异常
                 }
-            }
-        } catch (ClassNotFoundException | IllegalAccessException e) {
-        } catch (InvocationTargetException e) {
-            Throwable t = e.getCause();
-            if (t instanceof ActionMethodException) {
-                throw (ActionMethodException) t;
-            }
-            log.error("Failed!!!", t);
-            throw new ServletException("invokeMethod(" + cls_name + "." + method + ")", t);
-        } catch (IllegalArgumentException e) {
+                break;
+        }
+        if (route.error instanceof IllegalArgumentException) {
+            throw (IllegalArgumentException) route.error;
+        }
+        if (route.error != null) {
+            throw new ServletException("invokeMethod(" + route.name + ")", route.error);
+        }
+        Object res;
+        try {
+            res = route.invoke(ctx, args.toArray());
+        } catch (ActionMethodException e) {
             throw e;
         } catch (Throwable t) {
-            throw new ServletException("invokeMethod(" + cls_name + "." + method + ")", t);
+            log.error("Failed!!!", t);
+            throw new ServletException("invokeMethod(" + route.name + ")", t);
         }
-        return new boolean[]{false, true};
-    }
-
-    /**
-     * 根据方法名返回方法的实例（不允许action方法重名）
-     *
-     * @param cls
-     * @param method
-     * @param <T>
-     * @return
-     */
-    private static <T> Method getActionMethod(Class<T> cls, String method) {
-        for (Method m : cls.getDeclaredMethods()) {
-            if (Modifier.isPublic(m.getModifiers()) && m.getName().equals(method)) {
-                return m;
+        if (route.returnBoolean) {
+            return new boolean[]{true, (Boolean) res};
+        } else if (route.returnVoid) {
+            return new boolean[]{true, false};
+        } else {
+            try {
+                ctx.output(res);
+            } catch (IOException e) {
+                throw new ServletException("invokeMethod(" + route.name + ")", e);
             }
+            return new boolean[]{true, false};
         }
-        return null;
     }
 
     /**
-     * 对路径数据进行偏移操作
+     * 调用 URI 对应的模板文件，VelocityServlet 已初始化时直接渲染，路径中余下的段作为模板变量 p1,p2...
      *
+     * @param ctx
      * @param paths
-     * @param shiftLeftCount
-     * @return
+     * @throws ServletException
+     * @throws IOException
      */
-    private String[] shiftParams(String[] paths, int shiftLeftCount) {
-        return Stream.of(paths).skip(shiftLeftCount).toArray(String[]::new);
+    private void callTemplate(RequestContext ctx, PathSegments paths) throws ServletException, IOException {
+        TemplateResolver.Resolved vm = resolveTemplate(paths);
+        debug("callTemplate " + vm.template);
+        if (!VelocityServlet.render(ctx.request(), ctx.response(), vm.template, templateParams(paths, vm.idx_base))) {
+            ctx.forward(vm.template + makeQueryString(paths, vm.idx_base));
+        }
     }
 
     /**
-     * 调用 URI 对应的模板文件
-     *
-     * @param ctx
-     * @param paths
-     * @throws ServletException
-     * @throws IOException
+     * 模板参数，按查询字符串的规则解码，与 forward 时从 p1,p2... 参数中取得的值一致
      */
-    private void callTemplate(RequestContext ctx, String[] paths) throws ServletException, IOException {
-        String vm = getTemplate(paths, paths.length);
-        debug("callTemplate " + vm);
-        //context.getRequestDispatcher(vm).forward(ctx.request(), ctx.response());
-        ctx.forward(vm);
+    private String[] templateParams(PathSegments paths, int idx_base) throws UnsupportedEncodingException {
+        String[] params = paths.slice(idx_base).toArray();
+        for (int i = 0; i < params.length; i++) {
+            if (params[i].indexOf('%') >= 0 || params[i].indexOf('+') >= 0) {
+                try {
+                    params[i] = URLDecoder.decode(params[i], "UTF-8");
+                } catch (IllegalArgumentException e) {
+                    //非法的转义保留原值
+                }
+            }
+        }
+        return params;
     }
 
     /**
-     * 获取请求的目标模板
+     * 解析请求路径对应的模板，结果按路径缓存
      *
      * @param paths
-     * @param idx_base
      * @return
      */
-    private String getTemplate(String[] paths, int idx_base) {
-        StringBuilder vm = new StringBuilder(template_path);
-
-        if (idx_base == 0) {
-            return vm.toString() + VM_INDEX + makeQueryString(paths, idx_base);
-        }
-
-        for (int i = 0; i < idx_base; i++) {
-            vm.append('/');
-            vm.append(paths[i]);
+    private TemplateResolver.Resolved resolveTemplate(PathSegments paths) {
+        String key = paths.join(0, paths.size());
+        TemplateResolver.Resolved cached = templates.cached(key);
+        if (cached != null) {
+            return cached;
         }
-        String vms = vm.toString();
-        String the_path = vms;
+        StringBuilder vm = new StringBuilder(template_path.length() + 64);
+        for (int idx_base = paths.size(); idx_base > 0; idx_base--) {
+            vm.setLength(0);
+            vm.append(template_path);
+            paths.appendTo(vm, idx_base);
+            int len = vm.length();
 
-        the_path += VM_INDEX;
-
-        if (checkVmExists(the_path)) {
-            return the_path + makeQueryString(paths, idx_base);
-        }
+            vm.append(VM_INDEX);
+            String the_path = vm.toString();
+            if (checkVmExists(the_path)) {
+                return templates.cache(key, the_path, idx_base);
+            }
 
-        vms += VM_EXT;
-        if (checkVmExists(vms)) {
-            return vms + makeQueryString(paths, idx_base);
+            vm.setLength(len);
+            vm.append(VM_EXT);
+            String vms = vm.toString();
+            if (checkVmExists(vms)) {
+                return templates.cache(key, vms, idx_base);
+            }
         }
-
-        return getTemplate(paths, idx_base - 1);
+        return templates.cache(key, template_path + VM_INDEX, 0);
     }
 
-    private String makeQueryString(String[] paths, int idx_base) {
+    private String makeQueryString(PathSegments paths, int idx_base) {
+        if (idx_base >= paths.size()) {
+            return "";
+        }
         StringBuilder params = new StringBuilder();
         int idx = 1;
-        for (int i = idx_base; i < paths.length; i++) {
-            if (params.length() == 0) {
-                params.append('?');
-            }
-            if (i > idx_base) {
-                params.append('&');
-            }
+        for (int i = idx_base; i < paths.size(); i++) {
+            params.append((i > idx_base) ? '&' : '?');
             params.append("p");
             params.append(idx++);
             params.append('=');
-            params.append(paths[i]);
+            params.append(paths.get(i));
         }
         return params.toString();
     }
 
-    private final static List<String> vm_cache = new Vector<>();
-
     /**
-     * 判断某个页面是否存在，如果存在则缓存此结果
+     * 判断某个页面是否存在
      *
      * @param path
      * @return
      */
     private boolean checkVmExists(String path) {
         debug("checkVmExists path=%s\n", path);
-        if (vm_cache.contains(path)) {
-            return true;
-        }
-        boolean isVM = false;
-        if (context != null) {
-            String cpath = context.getRealPath(path);
-            if (cpath != null) {
-                File testFile = new File(cpath);
-                isVM = testFile.exists() && testFile.isFile();
-                if (isVM) {
-                    vm_cache.add(path);
-                }
-            }
-        }
-        return isVM;
+        return templates.exists(path);
     }
 
     /**
@@ -1051,18 +1014,15 @@ public class OnlyOneFilter implements Filter {
             if (values == null) {
                 return null;
             }
-            List<Long> lvs = new ArrayList<Long>();
+            LongList lvs = new LongList(values.length);
+            LongIntMap exists = new LongIntMap(values.length);
             for (String v : values) {
                 long lv = NumberUtils.toLong(v, Long.MIN_VALUE);
-                if (lv != Long.MIN_VALUE && !lvs.contains(lv)) {
+                if (lv != Long.MIN_VALUE && exists.putIfAbsent(lv, 0)) {
                     lvs.add(lv);
                 }
             }
-            long[] llvs = new long[lvs.size()];
-            for (int i = 0; i < lvs.size(); i++) {
-                llvs[i] = lvs.get(i);
-            }
-            return llvs;
+            return lvs.toArray();
         }
 
         public void dumpRequestParams(PrintStream out) {
@@ -0,0 +1,185 @@
+package config;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * URI 路径分段，例如 /blog/list/2 -> [blog, list, 2]，忽略空段
+ * 一次扫描记录每段的起止位置，slice 返回共享同一份数据的子视图，段的字符串在第一次读取时才生成。
+ * 解析结果保存在请求属性中，HomeFilter 与 OnlyOneFilter 处理同一个 URI 时不再重复解析。
+ */
+final class PathSegments {
+
+    private final static String ATTR_NAME = "$OOF_PATH_SEGMENTS$";
+
+    private final String uri;       //被解析的原始 URI
+    private final int[] bounds;     //每段的起止位置：start0, end0, start1, end1 ...
+    private final String[] values;  //已经生成的段字符串
+    private final int offset;
+    private final int count;
+    private String path;            //本视图对应的 URI
+
+    private PathSegments(String uri, int[] bounds, String[] values, int offset, int count, String path) {
+        this.uri = uri;
+        this.bounds = bounds;
+        this.values = values;
+        this.offset = offset;
+        this.count = count;
+        this.path = path;
+    }
+
+    /**
+     * 解析 URI
+     *
+     * @param uri
+     * @return
+     */
+    static PathSegments parse(String uri) {
+        int n = 0;
+        int len = uri.length();
+        for (int i = 0; i < len; i++) {
+            if (uri.charAt(i) != '/' && (i == 0 || uri.charAt(i - 1) == '/')) {
+                n++;
+            }
+        }
+        int[] bounds = new int[n * 2];
+        int idx = 0;
+        int start = -1;
+        for (int i = 0; i <= len; i++) {
+            if (i == len || uri.charAt(i) == '/') {
+                if (start >= 0) {
+                    bounds[idx++] = start;
+                    bounds[idx++] = i;
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        return new PathSegments(uri, bounds, new String[n], 0, n, uri);
+    }
+
+    /**
+     * 返回请求中已经解析过的结果，URI 不同时重新解析并保存到请求中
+     *
+     * @param req
+     * @param uri
+     * @return
+     */
+    static PathSegments of(ServletRequest req, String uri) {
+        Object segments = req.getAttribute(ATTR_NAME);
+        if (segments instanceof PathSegments && ((PathSegments) segments).path().equals(uri)) {
+            return (PathSegments) segments;
+        }
+        PathSegments parsed = parse(uri);
+        parsed.share(req);
+        return parsed;
+    }
+
+    /**
+     * 保存到请求中，供后续的过滤器使用
+     *
+     * @param req
+     */
+    void share(ServletRequest req) {
+        req.setAttribute(ATTR_NAME, this);
+    }
+
+    int size() {
+        return count;
+    }
+
+    String get(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException(String.valueOf(i));
+        }
+        int idx = offset + i;
+        String value = values[idx];
+        if (value == null) {
+            value = uri.substring(bounds[idx * 2], bounds[idx * 2 + 1]);
+            values[idx] = value;
+        }
+        return value;
+    }
+
+    /**
+     * 去掉前 from 段后的子视图
+     *
+     * @param from
+     * @return
+     */
+    PathSegments slice(int from) {
+        if (from <= 0) {
+            return this;
+        }
+        int skip = Math.min(from, count);
+        return new PathSegments(uri, bounds, values, offset + skip, count - skip, null);
+    }
+
+    String[] toArray() {
+        String[] array = new String[count];
+        for (int i = 0; i < count; i++) {
+            array[i] = get(i);
+        }
+        return array;
+    }
+
+    /**
+     * 本视图对应的 URI：原始 URI，或子视图各段以 / 连接（不带前导 /）
+     *
+     * @return
+     */
+    String path() {
+        if (path == null) {
+            path = join(0, count);
+        }
+        return path;
+    }
+
+    /**
+     * 把 [from, to) 各段以 / 连接，各段在原 URI 中连续时直接截取
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    String join(int from, int to) {
+        if (from >= to) {
+            return "";
+        }
+        int first = (offset + from) * 2;
+        int last = (offset + to - 1) * 2 + 1;
+        if (contiguous(first, last)) {
+            return uri.substring(bounds[first], bounds[last]);
+        }
+        StringBuilder sb = new StringBuilder(bounds[last] - bounds[first]);
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                sb.append('/');
+            }
+            sb.append(uri, bounds[(offset + i) * 2], bounds[(offset + i) * 2 + 1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 把 [0, to) 各段以 /seg 的形式追加到 sb
+     *
+     * @param sb
+     * @param to
+     */
+    void appendTo(StringBuilder sb, int to) {
+        for (int i = 0; i < to; i++) {
+            sb.append('/');
+            sb.append(uri, bounds[(offset + i) * 2], bounds[(offset + i) * 2 + 1]);
+        }
+    }
+
+    private boolean contiguous(int first, int last) {
+        for (int i = first + 1; i < last; i += 2) {
+            if (bounds[i + 1] != bounds[i] + 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
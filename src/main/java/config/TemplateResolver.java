@@ -0,0 +1,267 @@
+package config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * 模板解析缓存
+ * init 时遍历 template-path 下所有 .vm 文件，之后判断模板是否存在只需查找集合；
+ * 取不到模板目录的真实路径时（例如未解压的 war）退回逐个检查文件，存在与不存在的结果都缓存。
+ * 请求路径各段到目标模板的解析结果同样缓存，超过上限时近似按最近最少使用淘汰（CLOCK），读取不加锁。
+ * 模板在运行期间新增或删除时需要重启，开发环境可配置 template-watch=true 监听模板目录的变化。
+ */
+final class TemplateResolver {
+
+    private final static Logger log = LoggerFactory.getLogger(TemplateResolver.class);
+
+    private final static int MAX_ENTRIES = 10000;   //缓存的路径上限，超过后淘汰近期未使用的路径
+    private final static String VM_EXT = ".vm";
+
+    private final ServletContext context;
+    private final String templatePath;
+    private volatile Set<String> templates;     //全部模板，未能遍历模板目录时为 null
+    private final BoundedCache<Boolean> checked = new BoundedCache<>(MAX_ENTRIES);  //未能遍历时逐个检查的结果
+    private final BoundedCache<Resolved> resolved = new BoundedCache<>(MAX_ENTRIES);
+    private WatchService watcher;
+
+    TemplateResolver(ServletContext context, String templatePath, boolean watch) {
+        this.context = context;
+        this.templatePath = templatePath;
+        String root = (context != null && templatePath != null) ? context.getRealPath(templatePath) : null;
+        if (root != null && new File(root).isDirectory()) {
+            Path dir = new File(root).toPath();
+            templates = scan(dir);
+            if (templates != null) {
+                log.info(String.format("%d templates found in %s", templates.size(), templatePath));
+                if (watch) {
+                    watch(dir);
+                }
+            }
+        }
+    }
+
+    /**
+     * 返回已缓存的解析结果
+     *
+     * @param key 请求路径各段以 / 连接
+     * @return
+     */
+    Resolved cached(String key) {
+        return resolved.get(key);
+    }
+
+    Resolved cache(String key, String template, int idx_base) {
+        Resolved result = new Resolved(template, idx_base);
+        resolved.put(key, result);
+        return result;
+    }
+
+    /**
+     * 判断模板是否存在
+     *
+     * @param path
+     * @return
+     */
+    boolean exists(String path) {
+        Set<String> all = templates;
+        if (all != null) {
+            return all.contains(path);
+        }
+        Boolean exists = checked.get(path);
+        if (exists == null) {
+            exists = false;
+            if (context != null) {
+                String cpath = context.getRealPath(path);
+                if (cpath != null) {
+                    File testFile = new File(cpath);
+                    exists = testFile.exists() && testFile.isFile();
+                }
+            }
+            checked.put(path, exists);
+        }
+        return exists;
+    }
+
+    private Set<String> scan(Path root) {
+        Set<String> found = ConcurrentHashMap.newKeySet();
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(f -> Files.isRegularFile(f) && f.getFileName().toString().endsWith(VM_EXT))
+                    .forEach(f -> found.add(toTemplatePath(root, f)));
+            return found;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to scan templates in " + root, e);
+            return null;
+        }
+    }
+
+    private String toTemplatePath(Path root, Path file) {
+        StringBuilder path = new StringBuilder(templatePath);
+        for (Path name : root.relativize(file)) {
+            path.append('/').append(name.toString());
+        }
+        return path.toString();
+    }
+
+    /**
+     * 监听模板目录，模板新增或删除时更新模板集合并清空解析结果
+     */
+    private void watch(Path root) {
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            register(root);
+        } catch (IOException e) {
+            log.warn("Failed to watch templates in " + root, e);
+            return;
+        }
+        Thread t = new Thread(() -> {
+            try {
+                for (; ; ) {
+                    WatchKey key = watcher.take();
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Path file = (event.kind() == StandardWatchEventKinds.OVERFLOW) ? null : dir.resolve((Path) event.context());
+                        boolean vm = (file != null) && file.getFileName().toString().endsWith(VM_EXT);
+                        if (file == null || (!vm && event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                                || (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file))) {
+                            //事件丢失、新增或删除目录时重新遍历
+                            if (file != null && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                                register(file);
+                            }
+                            Set<String> found = scan(root);
+                            if (found != null) {
+                                templates = found;
+                            }
+                        } else if (vm) {
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                                templates.add(toTemplatePath(root, file));
+                            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                                templates.remove(toTemplatePath(root, file));
+                            }
+                        }
+                    }
+                    resolved.clear();
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+            } catch (IOException e) {
+                log.error("Template watcher stopped", e);
+            }
+        }, "Template-Watcher");
+        t.setDaemon(true);
+        t.start();
+        log.info("Watching templates in " + root);
+    }
+
+    private void register(Path dir) throws IOException {
+        try (Stream<Path> dirs = Files.walk(dir)) {
+            for (Path d : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+    }
+
+    void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * 近似 LRU 的有界缓存（CLOCK），带 id 的路径（例如 blog/12345）数量不受限，不能只缓存最先出现的那些
+     * 读取只标记条目已被访问；超过上限时时钟指针从上次停下的位置继续扫描，
+     * 已标记的条目清除标记后跳过，未标记的条目被淘汰，只有写入时的淘汰扫描需要加锁。
+     */
+    private final static class BoundedCache<V> {
+
+        private final static int MAX_SWEEP = 64;    //每次写入最多扫描的条目数
+
+        private final int maxEntries;
+        private final ConcurrentHashMap<String, Node<V>> entries = new ConcurrentHashMap<>(1024);
+        private Iterator<Map.Entry<String, Node<V>>> hand;  //时钟指针，由 evict() 加锁访问
+
+        BoundedCache(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        V get(String key) {
+            Node<V> node = entries.get(key);
+            if (node == null) {
+                return null;
+            }
+            if (!node.referenced) {
+                node.referenced = true;
+            }
+            return node.value;
+        }
+
+        void put(String key, V value) {
+            if (entries.put(key, new Node<>(value)) == null && entries.size() > maxEntries) {
+                evict();
+            }
+        }
+
+        void clear() {
+            entries.clear();
+        }
+
+        private synchronized void evict() {
+            for (int i = 0; i < MAX_SWEEP && entries.size() > maxEntries; i++) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = entries.entrySet().iterator();
+                    if (!hand.hasNext()) {
+                        return;
+                    }
+                }
+                Map.Entry<String, Node<V>> e = hand.next();
+                Node<V> node = e.getValue();
+                if (node.referenced) {
+                    node.referenced = false;
+                } else {
+                    entries.remove(e.getKey(), node);
+                }
+            }
+        }
+
+        private final static class Node<V> {
+            final V value;
+            volatile boolean referenced;
+
+            Node(V value) {
+                this.value = value;
+            }
+        }
+    }
+
+    /**
+     * 解析结果：目标模板，以及从第几段开始作为 p1,p2... 参数
+     */
+    final static class Resolved {
+        final String template;
+        final int idx_base;
+
+        Resolved(String template, int idx_base) {
+            this.template = template;
+            this.idx_base = idx_base;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * 键为 long、值为 int 的哈希表（开放寻址），用于 id 计数、id 去重及 id 到下标的映射，避免装箱
+ */
+public class LongIntMap {
+
+	private final static long FREE = 0L;	//空槽位，键 0 单独存放
+	private final static float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size;		//不含键 0
+	private boolean hasZero;
+	private int zeroValue;
+
+	public LongIntMap() {
+		this(16);
+	}
+
+	public LongIntMap(int expected) {
+		int capacity = Integer.highestOneBit(Math.max((int) (expected / LOAD_FACTOR), 4) - 1) << 1;
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+	}
+
+	public int size() {
+		return hasZero ? size + 1 : size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public boolean containsKey(long key) {
+		return (key == FREE) ? hasZero : keys[slot(key)] == key;
+	}
+
+	/**
+	 * 返回键对应的值，不存在时返回 defaultValue
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	public int get(long key, int defaultValue) {
+		if (key == FREE) {
+			return hasZero ? zeroValue : defaultValue;
+		}
+		int idx = slot(key);
+		return (keys[idx] == key) ? values[idx] : defaultValue;
+	}
+
+	public void put(long key, int value) {
+		if (key == FREE) {
+			hasZero = true;
+			zeroValue = value;
+			return;
+		}
+		int idx = slot(key);
+		if (keys[idx] != key) {
+			keys[idx] = key;
+			if (++size > keys.length * LOAD_FACTOR) {
+				values[idx] = value;
+				rehash();
+				return;
+			}
+		}
+		values[idx] = value;
+	}
+
+	/**
+	 * 键不存在时写入
+	 * @param key
+	 * @param value
+	 * @return 是否写入
+	 */
+	public boolean putIfAbsent(long key, int value) {
+		if (containsKey(key)) {
+			return false;
+		}
+		put(key, value);
+		return true;
+	}
+
+	/**
+	 * 值累加 delta，键不存在时视为 0
+	 * @param key
+	 * @param delta
+	 * @return 累加后的值
+	 */
+	public int add(long key, int delta) {
+		int value = get(key, 0) + delta;
+		put(key, value);
+		return value;
+	}
+
+	/**
+	 * 返回所有的键
+	 * @return
+	 */
+	public long[] keys() {
+		long[] result = new long[size()];
+		int i = 0;
+		if (hasZero) {
+			result[i++] = FREE;
+		}
+		for (long key : keys) {
+			if (key != FREE) {
+				result[i++] = key;
+			}
+		}
+		return result;
+	}
+
+	public void forEach(EntryConsumer consumer) {
+		if (hasZero) {
+			consumer.accept(FREE, zeroValue);
+		}
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != FREE) {
+				consumer.accept(keys[i], values[i]);
+			}
+		}
+	}
+
+	public void clear() {
+		Arrays.fill(keys, FREE);
+		size = 0;
+		hasZero = false;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		int idx = (int) (h ^ (h >>> 32)) & mask;
+		while (keys[idx] != FREE && keys[idx] != key) {
+			idx = (idx + 1) & mask;
+		}
+		return idx;
+	}
+
+	private void rehash() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length << 1];
+		values = new int[oldKeys.length << 1];
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE) {
+				int idx = slot(oldKeys[i]);
+				keys[idx] = oldKeys[i];
+				values[idx] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * 遍历键值对
+	 */
+	public interface EntryConsumer {
+		void accept(long key, int value);
+	}
+}
@@ -0,0 +1,59 @@
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * 基本类型 long 的动态数组，用于批量处理 id 时避免装箱
+ */
+public class LongList {
+
+	private long[] elements;
+	private int size;
+
+	public LongList() {
+		this(16);
+	}
+
+	public LongList(int capacity) {
+		this.elements = new long[Math.max(capacity, 4)];
+	}
+
+	public void add(long value) {
+		if (size == elements.length) {
+			elements = Arrays.copyOf(elements, size + (size >> 1) + 1);
+		}
+		elements[size++] = value;
+	}
+
+	public long get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return elements[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * 返回包含所有元素的新数组
+	 * @return
+	 */
+	public long[] toArray() {
+		return Arrays.copyOf(elements, size);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}